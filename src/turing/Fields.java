@@ -24,12 +24,21 @@ public final class Fields {
 	public static final String OP_LIST         = "o_7";
 	public static final String OP_CHAT_MSG     = "o_8";
 	public static final String OP_INVITE       = "o_9";
+	public static final String OP_RENEW_LEASE  = "o_10";
 
 	// status
 	public static final String STATUS          = "s";
 	public static final String STATUS_OK       = "s_0";
 	public static final String STATUS_ERR      = "s_1";
 
+	// protocols
+	public static final String PROTOCOL_JSON   = "p_0";
+	public static final String PROTOCOL_BINARY = "p_1";
+
+	// list filters
+	public static final String FILTER_OWNED    = "l_0";
+	public static final String FILTER_SHARED   = "l_1";
+
 	// fields
 	public static final String USERNAME        = "f_0";
 	public static final String PASSWORD        = "f_1";
@@ -44,4 +53,23 @@ public final class Fields {
 	public static final String CHAT_ADDR       = "f_10";
 	public static final String CHAT_MSG        = "f_11";
 	public static final String ERR_MSG         = "f_12";
+	public static final String PROTOCOL        = "f_13";
+	public static final String REQUEST_ID      = "f_14";
+	public static final String STREAM          = "f_15";
+	public static final String MORE            = "f_16";
+	public static final String VERSION         = "f_17";
+	public static final String PATCH           = "f_18";
+	public static final String PATCH_OFFSET    = "f_19";
+	public static final String PATCH_DELETE    = "f_20";
+	public static final String PATCH_INSERT    = "f_21";
+	public static final String BASE_LENGTH     = "f_22";
+	public static final String DOC_ID          = "f_23";
+	public static final String LIST_VERSION    = "f_24";
+	public static final String LIST_DELTA      = "f_25";
+	public static final String PAGE_SIZE       = "f_26";
+	public static final String CURSOR          = "f_27";
+	public static final String LIST_FILTER     = "f_28";
+	public static final String NAME_PREFIX     = "f_29";
+	public static final String LEASE_MILLIS    = "f_30";
+	public static final String STILL_EDITING   = "f_31";
 }
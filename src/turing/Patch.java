@@ -0,0 +1,166 @@
+package turing;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of edits of a text, each one replacing a range of chars
+ *
+ * Ranges refer to the base text, are sorted and don't overlap.
+ */
+public final class Patch {
+	private final int baseLength;     // length of the text the patch applies to
+	private final List<Range> ranges; // sorted by offset
+
+	/**
+	 * A replaced range of the base text
+	 */
+	private static final class Range {
+		final int offset;      // first replaced char
+		final int delete;      // number of replaced chars
+		final String insert;   // replacement
+
+		Range(int offset, int delete, String insert) {
+			this.offset = offset;
+			this.delete = delete;
+			this.insert = insert;
+		}
+	}
+
+	/**
+	 * Creates a new patch
+	 *
+	 * @param baseLength the length of the base text
+	 * @param ranges     the replaced ranges
+	 */
+	private Patch(int baseLength, List<Range> ranges) {
+		this.baseLength = baseLength;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Computes the patch that transforms a text into another one,
+	 * as a single range between the common prefix and the common suffix
+	 *
+	 * @param base   the original text
+	 * @param edited the edited text
+	 *
+	 * @return the patch
+	 */
+	public static Patch diff(String base, String edited) {
+		int prefix = 0;
+		int maxPrefix = Math.min(base.length(), edited.length());
+		while (prefix < maxPrefix && base.charAt(prefix) == edited.charAt(prefix))
+			prefix++;
+
+		int suffix = 0;
+		int maxSuffix = maxPrefix - prefix;
+		while (suffix < maxSuffix &&
+				base.charAt(base.length() - 1 - suffix) == edited.charAt(edited.length() - 1 - suffix))
+			suffix++;
+
+		// never splitting a surrogate pair
+		if (prefix > 0 && Character.isHighSurrogate(base.charAt(prefix - 1)))
+			prefix--;
+		if (suffix > 0 && Character.isLowSurrogate(base.charAt(base.length() - suffix)))
+			suffix--;
+
+		int delete = base.length() - prefix - suffix;
+		String insert = edited.substring(prefix, edited.length() - suffix);
+		if (delete == 0 && insert.isEmpty()) // same text
+			return new Patch(base.length(), Collections.emptyList());
+		return new Patch(base.length(), Collections.singletonList(new Range(prefix, delete, insert)));
+	}
+
+	/**
+	 * Applies the patch
+	 *
+	 * @param base the base text
+	 *
+	 * @return the patched text
+	 *
+	 * @throws IllegalArgumentException if the patch doesn't apply to the base text
+	 */
+	public String apply(String base) throws IllegalArgumentException {
+		if (base.length() != baseLength)
+			throw new IllegalArgumentException("Patch base length mismatch");
+
+		StringBuilder result = new StringBuilder(base.length());
+		int position = 0;
+		for (Range range : ranges) {
+			result.append(base, position, range.offset).append(range.insert);
+			position = range.offset + range.delete;
+		}
+		return result.append(base, position, base.length()).toString();
+	}
+
+	/**
+	 * Returns the size of the patch
+	 *
+	 * @return the number of inserted chars
+	 */
+	public int size() {
+		int size = 0;
+		for (Range range : ranges)
+			size += range.insert.length();
+		return size;
+	}
+
+	/**
+	 * Returns the length of the base text
+	 *
+	 * @return the base text length
+	 */
+	public int getBaseLength() {
+		return baseLength;
+	}
+
+	/**
+	 * Encodes the ranges of the patch
+	 *
+	 * @return an array of objects with PATCH_OFFSET, PATCH_DELETE and PATCH_INSERT
+	 */
+	public JSONArray toJSON() {
+		JSONArray array = new JSONArray();
+		for (Range range : ranges)
+			array.put(new JSONObject()
+					.put(Fields.PATCH_OFFSET, range.offset)
+					.put(Fields.PATCH_DELETE, range.delete)
+					.put(Fields.PATCH_INSERT, range.insert));
+		return array;
+	}
+
+	/**
+	 * Decodes a patch
+	 *
+	 * @param baseLength the length of the base text
+	 * @param array      the array of ranges
+	 *
+	 * @return the patch
+	 *
+	 * @throws IllegalArgumentException if the ranges are malformed, unsorted, overlapping or out of the base text
+	 */
+	public static Patch fromJSON(int baseLength, JSONArray array) throws IllegalArgumentException {
+		List<Range> ranges = new ArrayList<>(array.length());
+		int end = 0; // end of the previous range
+		try {
+			for (int i = 0; i < array.length(); i++) {
+				JSONObject object = array.getJSONObject(i);
+				Range range = new Range(object.getInt(Fields.PATCH_OFFSET), object.getInt(Fields.PATCH_DELETE),
+						object.getString(Fields.PATCH_INSERT));
+				if (range.offset < end || range.delete < 0 || range.delete > baseLength - range.offset)
+					throw new IllegalArgumentException("Invalid patch range: " + range.offset + ", " + range.delete);
+				end = range.offset + range.delete;
+				ranges.add(range);
+			}
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Malformed patch: " + e.getMessage());
+		}
+		return new Patch(baseLength, ranges);
+	}
+}
@@ -0,0 +1,300 @@
+package turing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message framing shared by the client and the server
+ *
+ * Messages are JSON lines until the binary protocol is negotiated at login, then they become frames:
+ *   int    length    (bytes that follow)
+ *   byte   code      (operation number for requests, 0x80 | status number for replies)
+ *   object fields
+ * where an object is a short field count followed by the fields, each one a byte with the field number,
+ * a byte with the value type and the value; strings are raw UTF-8 bytes preceded by their length.
+ */
+public final class Protocol {
+	public static final int MAX_FRAME = 64 * 1024 * 1024; // max frame length
+
+	// value types
+	private static final byte TYPE_NULL   = 0;
+	private static final byte TYPE_INT    = 1;
+	private static final byte TYPE_BOOL   = 2;
+	private static final byte TYPE_STRING = 3;
+	private static final byte TYPE_ARRAY  = 4; // array of objects
+	private static final byte TYPE_LONG   = 5;
+
+	private static final int REPLY_FLAG = 0x80; // code flag for replies
+
+	/**
+	 * Creates a new protocol class
+	 */
+	private Protocol() {
+		super();
+	}
+
+	/**
+	 * Reads a newline terminated UTF-8 line
+	 *
+	 * @param input the stream to read
+	 *
+	 * @return the line without the terminator, if any
+	 *         null if the stream ended
+	 *
+	 * @throws IOException if a network error occurs
+	 */
+	public static String readLine(InputStream input) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = input.read()) != '\n') {
+			if (b == -1) // stream ended
+				return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+			line.write(b);
+		}
+
+		byte[] bytes = line.toByteArray();
+		int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a binary frame
+	 *
+	 * @param input the stream to read
+	 *
+	 * @return the decoded message, if any
+	 *         null if the stream ended
+	 *
+	 * @throws IOException              if a network error occurs or the frame length is invalid
+	 * @throws IllegalArgumentException if the frame content is malformed
+	 */
+	public static JSONObject readFrame(InputStream input) throws IOException, IllegalArgumentException {
+		DataInputStream dataInput = new DataInputStream(input);
+		int length;
+		try {
+			length = dataInput.readInt();
+		} catch (EOFException e) { // stream ended
+			return null;
+		}
+		if (length < 1 || length > MAX_FRAME)
+			throw new IOException("Invalid frame length: " + length);
+
+		byte[] body = new byte[length];
+		dataInput.readFully(body);
+		return decode(ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Encodes a message in a binary frame, length prefix included
+	 *
+	 * @param message the message to encode
+	 *
+	 * @return the frame bytes
+	 *
+	 * @throws IllegalArgumentException if the message contains unknown fields or values
+	 */
+	public static byte[] encode(JSONObject message) throws IllegalArgumentException {
+		return encode(message, null, 0);
+	}
+
+	/**
+	 * Encodes the beginning of a frame whose last field is a string sent raw by the caller,
+	 * so that its bytes can be copied as they are (e.g. from a file) right after the header
+	 *
+	 * @param message       the other fields of the message
+	 * @param payloadField  the string field that follows the header
+	 * @param payloadLength the length in bytes of the string
+	 *
+	 * @return the header bytes, length prefix included
+	 *
+	 * @throws IllegalArgumentException if the message contains unknown fields or values, or the frame is too long
+	 */
+	public static byte[] encodeHeader(JSONObject message, String payloadField, long payloadLength)
+			throws IllegalArgumentException {
+		return encode(message, payloadField, payloadLength);
+	}
+
+	/**
+	 * Encodes a frame, eventually leaving out the bytes of a last string field
+	 *
+	 * @param message       the message to encode
+	 * @param payloadField  the string field sent raw after the returned bytes, if any
+	 * @param payloadLength the length in bytes of the string
+	 *
+	 * @return the frame bytes, or the header if there is a payload
+	 *
+	 * @throws IllegalArgumentException if the message contains unknown fields or values, or the frame is too long
+	 */
+	private static byte[] encode(JSONObject message, String payloadField, long payloadLength)
+			throws IllegalArgumentException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(frame);
+		try {
+			output.writeInt(0); // length placeholder
+			if (message.has(Fields.OP))
+				output.writeByte(number(message.getString(Fields.OP)));
+			else
+				output.writeByte(REPLY_FLAG | number(message.getString(Fields.STATUS)));
+			writeObject(output, message, payloadField == null ? 0 : 1);
+			if (payloadField != null) {
+				output.writeByte(number(payloadField));
+				output.writeByte(TYPE_STRING);
+				output.writeInt((int) payloadLength);
+			}
+		} catch (IOException e) { // never thrown by a byte array stream
+			throw new UncheckedIOException(e);
+		}
+
+		byte[] bytes = frame.toByteArray();
+		long length = bytes.length - Integer.BYTES + payloadLength;
+		if (length > MAX_FRAME)
+			throw new IllegalArgumentException("Frame too long: " + length);
+		ByteBuffer.wrap(bytes).putInt(0, (int) length);
+		return bytes;
+	}
+
+	/**
+	 * Decodes the body of a binary frame
+	 *
+	 * @param body the frame bytes after the length prefix
+	 *
+	 * @return the decoded message
+	 *
+	 * @throws IllegalArgumentException if the frame content is malformed
+	 */
+	public static JSONObject decode(ByteBuffer body) throws IllegalArgumentException {
+		try {
+			int code = body.get() & 0xFF;
+			JSONObject message = readObject(body);
+			if ((code & REPLY_FLAG) == 0)
+				message.put(Fields.OP, "o_" + code);
+			else
+				message.put(Fields.STATUS, "s_" + (code & ~REPLY_FLAG));
+			return message;
+		} catch (RuntimeException e) { // buffer underflow, negative lengths...
+			throw new IllegalArgumentException("Malformed frame", e);
+		}
+	}
+
+	/**
+	 * Writes the fields of an object, except the operation and the status
+	 *
+	 * @param output      the destination stream
+	 * @param object      the object to write
+	 * @param extraFields fields written by the caller after the object ones
+	 *
+	 * @throws IOException if a write error occurs
+	 */
+	private static void writeObject(DataOutputStream output, JSONObject object, int extraFields) throws IOException {
+		int fields = object.length() - (object.has(Fields.OP) ? 1 : 0) - (object.has(Fields.STATUS) ? 1 : 0);
+		output.writeShort(fields + extraFields);
+		for (String key : object.keySet()) {
+			if (key.equals(Fields.OP) || key.equals(Fields.STATUS))
+				continue;
+
+			output.writeByte(number(key));
+			Object value = object.get(key);
+			if (value == JSONObject.NULL) {
+				output.writeByte(TYPE_NULL);
+			} else if (value instanceof Integer) {
+				output.writeByte(TYPE_INT);
+				output.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				output.writeByte(TYPE_LONG);
+				output.writeLong((Long) value);
+			} else if (value instanceof Boolean) {
+				output.writeByte(TYPE_BOOL);
+				output.writeBoolean((Boolean) value);
+			} else if (value instanceof String) {
+				byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+				output.writeByte(TYPE_STRING);
+				output.writeInt(bytes.length);
+				output.write(bytes);
+			} else if (value instanceof JSONArray) {
+				JSONArray array = (JSONArray) value;
+				output.writeByte(TYPE_ARRAY);
+				output.writeInt(array.length());
+				for (int i = 0; i < array.length(); i++)
+					writeObject(output, array.getJSONObject(i), 0);
+			} else {
+				throw new IllegalArgumentException("Unsupported value for " + key + ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Reads the fields of an object
+	 *
+	 * @param input the buffer to read
+	 *
+	 * @return the object read
+	 */
+	private static JSONObject readObject(ByteBuffer input) {
+		JSONObject object = new JSONObject();
+		int fields = input.getShort() & 0xFFFF;
+		for (int i = 0; i < fields; i++) {
+			String key = "f_" + (input.get() & 0xFF);
+			byte type = input.get();
+			switch (type) {
+				case TYPE_NULL:   object.put(key, JSONObject.NULL); break;
+				case TYPE_INT:    object.put(key, input.getInt()); break;
+				case TYPE_LONG:   object.put(key, input.getLong()); break;
+				case TYPE_BOOL:   object.put(key, input.get() != 0); break;
+				case TYPE_STRING: object.put(key, readString(input)); break;
+				case TYPE_ARRAY:
+					int length = input.getInt();
+					JSONArray array = new JSONArray();
+					for (int j = 0; j < length; j++)
+						array.put(readObject(input));
+					object.put(key, array);
+					break;
+				default: throw new IllegalArgumentException("Unknown value type: " + type);
+			}
+		}
+		return object;
+	}
+
+	/**
+	 * Reads a length prefixed UTF-8 string
+	 *
+	 * @param input the buffer to read
+	 *
+	 * @return the string read
+	 */
+	private static String readString(ByteBuffer input) {
+		int length = input.getInt();
+		if (length < 0 || length > input.remaining())
+			throw new IllegalArgumentException("Invalid string length: " + length);
+
+		String string;
+		if (input.hasArray()) { // decoding in place
+			string = new String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8);
+			input.position(input.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			input.get(bytes);
+			string = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return string;
+	}
+
+	/**
+	 * Returns the number of an operation, a status or a field (e.g. 12 for "f_12")
+	 *
+	 * @param name the operation, status or field name
+	 *
+	 * @return the number
+	 *
+	 * @throws IllegalArgumentException if the name doesn't end with a number that fits in a byte
+	 */
+	private static int number(String name) throws IllegalArgumentException {
+		int number = Integer.parseInt(name.substring(name.indexOf('_') + 1));
+		if (number < 0 || number >= REPLY_FLAG)
+			throw new IllegalArgumentException("Cannot encode " + name);
+		return number;
+	}
+}
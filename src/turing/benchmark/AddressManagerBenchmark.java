@@ -0,0 +1,85 @@
+package turing.benchmark;
+
+import turing.server.AddressManager;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.lang.System.out;
+
+/**
+ * Benchmark of the chat address allocation with a nearly full pool
+ *
+ * Fills the address pool up to a percentage, reporting the average allocation time of each tenth,
+ * then frees a random address and allocates another one, so that the pool stays filled, reporting
+ * the allocation latency percentiles.
+ *
+ * Usage: AddressManagerBenchmark [fill percentage] [allocations]
+ */
+public class AddressManagerBenchmark {
+	private static final int POOL_SIZE = 1 << 24; // addresses from 239.0.0.0 to 239.255.255.255
+
+	public static void main(String[] args) throws Exception {
+		int percentage = (args.length > 0) ? Integer.parseInt(args[0]) : 90;
+		int allocations = (args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000;
+		int filled = (int) ((long) POOL_SIZE * percentage / 100);
+
+		// filling the pool, the addresses are given in order
+		AddressManager addressManager = new AddressManager();
+		int[] reserved = new int[filled]; // numbers of the reserved addresses
+		for (int tenth = 1, done = 0; tenth <= 10; tenth++) {
+			int count = (int) ((long) filled * tenth / 10) - done;
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				reserved[done + i] = number(addressManager.createAddress());
+			long nanos = System.nanoTime() - start;
+			done += count;
+			out.printf("filled %3d%%: %6.1f ns/allocation%n", percentage * tenth / 10, (double) nanos / Math.max(count, 1));
+		}
+
+		// freeing a random address and allocating another one, the pool stays filled
+		Random random = new Random(1);
+		long[] latencies = new long[allocations];
+		for (int i = 0; i < allocations; i++) {
+			int slot = random.nextInt(filled);
+			addressManager.freeAddress(address(reserved[slot]));
+
+			long start = System.nanoTime();
+			InetAddress address = addressManager.createAddress();
+			latencies[i] = System.nanoTime() - start;
+			reserved[slot] = number(address);
+		}
+
+		Arrays.sort(latencies);
+		out.printf("%d%% full, %d allocations after a free: p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns%n", percentage,
+				allocations, latencies[allocations / 2], latencies[(int) (allocations * 0.99)],
+				latencies[(int) (allocations * 0.999)], latencies[allocations - 1]);
+	}
+
+	/**
+	 * Returns the number of a chat address, its last three bytes
+	 *
+	 * @param address the chat address
+	 *
+	 * @return the address number
+	 */
+	private static int number(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		return (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+	}
+
+	/**
+	 * Returns the chat address with a number
+	 *
+	 * @param number the address number
+	 *
+	 * @return the chat address
+	 *
+	 * @throws UnknownHostException never, the address has 4 bytes
+	 */
+	private static InetAddress address(int number) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] {(byte) 239, (byte) (number >>> 16), (byte) (number >>> 8), (byte) number});
+	}
+}
@@ -0,0 +1,113 @@
+package turing.benchmark;
+
+import turing.server.storage.DocumentStore;
+import turing.server.storage.FileStorage;
+import turing.server.storage.MappedStorage;
+import turing.server.storage.SingleFileStorage;
+import turing.server.storage.Storage;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.lang.System.out;
+
+/**
+ * Micro-benchmark of the section reads on sections with many lines
+ *
+ * For each storage, compares the stored content decoded once with the content split in lines and rejoined
+ * with the line separator, as the sections were read before. Reports the average time and the bytes
+ * allocated by a read.
+ *
+ * Usage: SectionReadBenchmark [lines] [line length] [iterations]
+ */
+public class SectionReadBenchmark {
+	private static final int WARMUP_ITERATIONS = 200; // reads before measuring, for the JIT
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static volatile int sink; // keeps the read contents alive
+
+	/**
+	 * A way to read a section
+	 */
+	private interface Reader {
+		String read(DocumentStore store) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int lines = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int lineLength = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+		int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+
+		StringBuilder content = new StringBuilder(lines * (lineLength + 1));
+		for (int i = 0; i < lines; i++)
+			content.append(String.valueOf(i % 10).repeat(lineLength)).append('\n');
+		out.println(lines + " lines of " + lineLength + " chars, " + iterations + " reads");
+
+		Path root = Files.createTempDirectory("turing-benchmark");
+		try {
+			Storage[] storages = {new FileStorage(root.resolve("files")), new MappedStorage(root.resolve("mapped")),
+					new SingleFileStorage(root.resolve("single_file"))};
+			for (Storage storage : storages) {
+				DocumentStore store = storage.createDocument("benchmark", "document", 1);
+				store.writeSection(0, content.toString());
+
+				String name = storage.getClass().getSimpleName();
+				measure(name + " split and rejoined", store, iterations, s -> joinLines(s.readSection(0)));
+				measure(name + " decoded once", store, iterations, s -> s.readSection(0));
+
+				storage.deleteDocument("benchmark", "document");
+				storage.close();
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(root)) { // the storage folders
+				files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	/**
+	 * Measures a way to read a section and prints the results
+	 *
+	 * @param label      the description of the read
+	 * @param store      the document storage
+	 * @param iterations the number of measured reads
+	 * @param reader     the read
+	 *
+	 * @throws Exception if a read fails
+	 */
+	private static void measure(String label, DocumentStore store, int iterations, Reader reader) throws Exception {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			sink += reader.read(store).length();
+
+		long allocated = threads.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			sink += reader.read(store).length();
+		long nanos = System.nanoTime() - start;
+		allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+		out.printf("%-40s %9.1f us/read %12d bytes allocated/read%n",
+				label, nanos / 1000.0 / iterations, allocated / iterations);
+	}
+
+	/**
+	 * Terminates each line of the stored content with the line separator, as the sections were read before
+	 *
+	 * @param stored the stored section content
+	 *
+	 * @return the rejoined content
+	 */
+	private static String joinLines(String stored) {
+		StringBuilder data = new StringBuilder(stored.length());
+		for (String line : (Iterable<String>) stored.lines()::iterator) {
+			data.append(line);
+			data.append(System.lineSeparator());
+		}
+		return data.toString();
+	}
+}
@@ -1,70 +1,211 @@
 package turing.client;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * Thread for listening chat messages
+ * Thread for listening chat messages, one for the whole session
+ *
+ * The channel is bound once and joins the chat group of the section being edited, dropping the previous
+ * one: switching section only changes the group membership. The received messages are queued and written
+ * in the chat area of the editing window in batches, at most FLUSH_MILLIS apart, so that a busy chat
+ * doesn't flood the event dispatch thread.
  */
 public class ChatListener implements Runnable {
-	private InetAddress chatAddress; // multicast chat address
-	private JTextArea chatArea;      // where messages will be written
-	private DatagramChannel channel; // where messages arrive
+	private static final int FLUSH_MILLIS = 33; // about 30 chat area updates per second, at most
+
+	private final NetworkInterface networkInterface; // where the groups are joined
+	private final DatagramChannel channel;           // where messages arrive, non blocking
+	private final Selector selector;                 // wakes up the thread for messages and group switches
+	private MembershipKey membership = null;         // current group, only used by the listener thread
+	private volatile JTextArea chatArea = null;      // where messages will be written, null if not editing
+	private final ByteBuffer byteBuffer = ByteBuffer.allocate(Client.MTU); // reused, the bytes are decoded at once
+
+	// group switch asked to the listener thread, protected by the monitor
+	private boolean switchRequested = false;
+	private InetAddress nextAddress = null;
+	private JTextArea nextChatArea = null;
+	private boolean closed = false;
+
+	private final Queue<String> received = new ConcurrentLinkedQueue<>(); // messages not written yet
+	private final Timer flushTimer = new Timer(FLUSH_MILLIS, event -> flush());
+
+	/**
+	 * Creates a new chat listener, bound to the chat port
+	 *
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public ChatListener() throws IOException {
+		networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName("localhost"));
+		channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			channel.bind(new InetSocketAddress(Client.CHAT_PORT));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
 
 	/**
-	 * Creates a new chat listener
+	 * Listens the chat group of the section being edited
 	 *
 	 * @param chatAddress the address to listen
 	 * @param chatArea    the chat messages text area
 	 */
-	public ChatListener(InetAddress chatAddress, JTextArea chatArea) {
-		this.chatAddress = chatAddress;
-		this.chatArea = chatArea;
+	public void join(InetAddress chatAddress, JTextArea chatArea) {
+		requestSwitch(chatAddress, chatArea);
 	}
 
 	/**
-	 * Connects and manages the chat
+	 * Stops listening the current chat group
+	 */
+	public void leave() {
+		requestSwitch(null, null);
+	}
+
+	/**
+	 * Asks the listener thread to switch group
+	 *
+	 * @param chatAddress the address to listen, null for none
+	 * @param chatArea    the chat messages text area, null for none
+	 */
+	private synchronized void requestSwitch(InetAddress chatAddress, JTextArea chatArea) {
+		switchRequested = true;
+		nextAddress = chatAddress;
+		nextChatArea = chatArea;
+		selector.wakeup();
+	}
+
+	/**
+	 * Manages the chat until the end of the session
 	 */
 	@Override
 	public void run() {
-		// join the multicast chat group
+		// reads messages and queues them for the application
+		flushTimer.start();
 		try {
-			NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName("localhost"));
-			channel = DatagramChannel.open();
-			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
-			channel.bind(new InetSocketAddress(Client.CHAT_PORT));
-			channel.join(chatAddress, networkInterface);
-		} catch (IOException e) {
-			Client.frame.showErrorDialog(e.getMessage());
-			return;
-		}
+			while (true) {
+				selector.select();
+				selector.selectedKeys().clear();
+				boolean switching;
+				InetAddress chatAddress;
+				JTextArea chatArea;
+				synchronized (this) { // copying the request, the switch doesn't hold the monitor
+					if (closed)
+						break;
+					switching = switchRequested;
+					chatAddress = nextAddress;
+					chatArea = nextChatArea;
+					switchRequested = false;
+					nextChatArea = null;
+				}
+				if (switching)
+					switchGroup(chatAddress, chatArea);
 
-		// reads messages and updates the application
-		while (true) {
-			ByteBuffer byteBuffer = ByteBuffer.allocate(Client.MTU);
-			byteBuffer.clear();
+				byteBuffer.clear();
+				while (channel.receive(byteBuffer) != null) {
+					byteBuffer.flip();
+					if (membership != null)
+						received.add(new String(byteBuffer.array(), 0, byteBuffer.limit(), StandardCharsets.UTF_8));
+					byteBuffer.clear();
+				}
+			}
+		} catch (IOException e) {
+			showError(e.getMessage());
+		} finally {
+			flushTimer.stop();
 			try {
-				channel.receive(byteBuffer);
+				selector.close();
+				channel.close();
 			} catch (IOException e) {
-				break;
+				System.err.println("Cannot close chat channel: " + e.getMessage());
 			}
-			byteBuffer.flip();
-			SwingUtilities.invokeLater(() -> chatArea.append(new String(byteBuffer.array()).trim() + "\n"));
 		}
 	}
 
 	/**
-	 * Terminates the thread
+	 * Leaves the current group, discarding its pending messages, and joins a new one
+	 *
+	 * @param chatAddress the address to listen, null for none
+	 * @param chatArea    the chat messages text area, null for none
+	 *
+	 * @throws IOException if the channel cannot be read
 	 */
-	public void shutdown() {
+	private void switchGroup(InetAddress chatAddress, JTextArea chatArea) throws IOException {
+		if (membership != null) {
+			membership.drop();
+			membership = null;
+		}
+		byteBuffer.clear();
+		while (channel.receive(byteBuffer) != null) // already received from the previous group
+			byteBuffer.clear();
+		received.clear();
+
+		this.chatArea = chatArea;
+		if (chatAddress == null)
+			return;
 		try {
-			channel.close();
-		} catch (IOException e) {
-			Client.frame.showErrorDialog(e.getMessage());
+			membership = channel.join(chatAddress, networkInterface);
+		} catch (IOException e) { // the editing goes on without the chat
+			showError(e.getMessage());
 		}
 	}
+
+	/**
+	 * Shows an error dialog from the event dispatch thread, the listener thread goes on
+	 *
+	 * @param message the error message
+	 */
+	private void showError(String message) {
+		SwingUtilities.invokeLater(() -> Client.frame.showErrorDialog(message));
+	}
+
+	/**
+	 * Writes the queued messages in the chat area, keeping the last Client.CHAT_SCROLLBACK lines
+	 */
+	private void flush() {
+		if (received.isEmpty())
+			return;
+
+		JTextArea chatArea = this.chatArea;
+		StringBuilder messages = new StringBuilder();
+		String message;
+		while ((message = received.poll()) != null)
+			messages.append(message).append('\n');
+		if (chatArea == null) // not editing anymore
+			return;
+		chatArea.append(messages.toString());
+
+		int excess = chatArea.getLineCount() - 1 - Client.CHAT_SCROLLBACK; // the last line is empty
+		if (excess > 0) {
+			try {
+				chatArea.replaceRange("", 0, chatArea.getLineStartOffset(excess));
+			} catch (BadLocationException e) { // never thrown, the lines exist
+				chatArea.setText("");
+			}
+		}
+	}
+
+	/**
+	 * Terminates the thread, at the end of the session
+	 */
+	public synchronized void shutdown() {
+		closed = true;
+		selector.wakeup();
+	}
 }
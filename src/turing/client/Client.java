@@ -16,6 +16,10 @@ public class Client {
 	static int    CHAT_PORT    = 1101;        // multicast port
 	static int    MTU          = 1500;        // Ethernet MTU
 
+	static boolean BINARY_PROTOCOL = false; // asks the server for the binary protocol at login
+	static int     LIST_PAGE_SIZE  = 100;   // documents asked at a time
+	static int     CHAT_SCROLLBACK = 1000;  // chat lines kept while editing
+
 	// socket address
 	static final InetSocketAddress DEFAULT_ADDRESS = new InetSocketAddress(SERVER_ADDR, DEFAULT_PORT);
 
@@ -55,11 +59,14 @@ public class Client {
 			DEFAULT_PORT   = Integer.parseInt(prop.getProperty("DEFAULT_PORT"));
 			CHAT_PORT      = Integer.parseInt(prop.getProperty("CHAT_PORT"));
 			MTU            = Integer.parseInt(prop.getProperty("MTU"));
+			LIST_PAGE_SIZE = Integer.parseInt(prop.getProperty("LIST_PAGE_SIZE", String.valueOf(LIST_PAGE_SIZE)));
+			CHAT_SCROLLBACK = Integer.parseInt(prop.getProperty("CHAT_SCROLLBACK", String.valueOf(CHAT_SCROLLBACK)));
 		} catch (NumberFormatException e) {
 			System.err.println("Bad configuration file format: " + e.getMessage());
 		}
 
 		SERVER_ADDR = prop.getProperty("SERVER_ADDR", SERVER_ADDR);
+		BINARY_PROTOCOL = "binary".equals(prop.getProperty("PROTOCOL", "json"));
 		REGISTRATION_OBJECT = prop.getProperty("REGISTRATION_OBJECT", REGISTRATION_OBJECT);
 		NOTIFICATION_OBJECT = prop.getProperty("NOTIFICATION_OBJECT", NOTIFICATION_OBJECT);
 	}
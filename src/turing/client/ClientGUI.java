@@ -1,5 +1,7 @@
 package turing.client;
 
+import turing.Fields;
+
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
@@ -7,7 +9,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import javax.swing.*;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.text.NumberFormatter;
 
@@ -18,9 +22,11 @@ public class ClientGUI extends JFrame {
 	private Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize(); // screen size
 
 	private Connection   connection = null;   // connection with the server
-	private ChatListener chatListener = null; // chat background thread
+	private ChatListener chatListener = null; // chat background thread, started at the first editing of the session
 
 	private ArrayList<Document> documents = new ArrayList<>(); // document list
+	private HashMap<Integer, Integer> documentIndexes = new HashMap<>(); // key: document ID, value: list index
+	private boolean fetchingPage = false; // a documents page has been requested
 
 	private DefaultTableModel documentsTableModel, sectionsTableModel; // table models
 
@@ -29,6 +35,8 @@ public class ClientGUI extends JFrame {
 
 	private ImageIcon sharedIcon, notSharedIcon; // table icons
 
+	private JTextArea documentArea = null; // text area of the document/section showing window
+
 	String username = null; // current username
 
 	/**
@@ -80,6 +88,12 @@ public class ClientGUI extends JFrame {
 	 */
 	public void showLoginWindow() {
 		setTitle("Turing - Login");
+
+		// terminates the chat thread of the session, if any
+		if (chatListener != null) {
+			chatListener.shutdown();
+			chatListener = null;
+		}
 		setVisible(false);
 		getContentPane().removeAll();
 		int width = 350;
@@ -135,11 +149,9 @@ public class ClientGUI extends JFrame {
 	public void showWorkspace() {
 		setTitle("Turing - " + username);
 
-		// terminates the chat thread, if any
-		if (chatListener != null) {
-			chatListener.shutdown();
-			chatListener = null;
-		}
+		// leaves the chat, if any
+		if (chatListener != null)
+			chatListener.leave();
 
 		setVisible(false);
 		getContentPane().removeAll();
@@ -217,7 +229,31 @@ public class ClientGUI extends JFrame {
 				updateSectionsTable(documentsTable.getSelectedRow());
 			sectionsTable.clearSelection();
 		});
-		documentsPanel.add(new JScrollPane(documentsTable));
+		JScrollPane documentsScrollPane = new JScrollPane(documentsTable);
+		documentsScrollPane.getVerticalScrollBar().addAdjustmentListener(event -> { // fetches the next documents
+			BoundedRangeModel scroll = documentsScrollPane.getVerticalScrollBar().getModel();
+			if (scroll.getValue() + scroll.getExtent() >= scroll.getMaximum()) // bottom reached
+				fetchDocumentsPage(documentsTable, documentsScrollPane);
+		});
+		documentsTableModel.addTableModelListener(event -> { // a page that doesn't fill the viewport has no scroll bar
+			if (event.getType() == TableModelEvent.INSERT && !isViewportFull(documentsTable, documentsScrollPane))
+				fetchDocumentsPage(documentsTable, documentsScrollPane);
+		});
+		documentsPanel.add(documentsScrollPane);
+
+		// filters, applied by the server
+		JPanel filtersPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		JComboBox<String> ownerFilter = new JComboBox<>(new String[] {"All documents", "My documents", "Shared with me"});
+		JTextField prefixFilter = new JTextField(16);
+		Runnable applyFilters = () -> Operation.list(
+				new String[] {null, Fields.FILTER_OWNED, Fields.FILTER_SHARED}[ownerFilter.getSelectedIndex()],
+				prefixFilter.getText());
+		ownerFilter.addActionListener(event -> applyFilters.run());
+		prefixFilter.addActionListener(event -> applyFilters.run()); // on enter
+		filtersPanel.add(ownerFilter);
+		filtersPanel.add(new JLabel("Name starts with"));
+		filtersPanel.add(prefixFilter);
+		documentsPanel.add(filtersPanel, BorderLayout.NORTH);
 
 		// centerPanel
 		centerPanel.add(documentsPanel);
@@ -281,9 +317,19 @@ public class ClientGUI extends JFrame {
 		chatPanel.add(chatField, BorderLayout.CENTER);
 		chatPanel.add(sendButton, BorderLayout.SOUTH);
 
-		// start chat background thread
-		chatListener = new ChatListener(chatAddress, chatArea);
-		new Thread(chatListener).start();
+		// join the chat, starting the chat background thread if needed
+		if (chatListener == null) {
+			try {
+				chatListener = new ChatListener();
+				Thread chatThread = new Thread(chatListener, "chat-listener");
+				chatThread.setDaemon(true);
+				chatThread.start();
+			} catch (IOException e) {
+				showErrorDialog(e.getMessage());
+			}
+		}
+		if (chatListener != null)
+			chatListener.join(chatAddress, chatArea);
 
 		// editing window
 		add(buttonsPanel, BorderLayout.WEST);
@@ -306,6 +352,7 @@ public class ClientGUI extends JFrame {
 		getContentPane().removeAll();
 		setLayout(new BorderLayout());
 		JTextArea editingArea = new JTextArea(documentText);
+		documentArea = editingArea;
 
 		// panels
 		JPanel buttonsPanel = new JPanel();
@@ -332,6 +379,16 @@ public class ClientGUI extends JFrame {
 		setVisible(true);
 	}
 
+	/**
+	 * Appends text to the document/section showing window, for streamed documents
+	 *
+	 * @param text the text to append
+	 */
+	public void appendDocumentText(String text) {
+		if (documentArea != null)
+			documentArea.append(text);
+	}
+
 	/**
 	 * Creates the document creation dialog window
 	 */
@@ -425,6 +482,38 @@ public class ClientGUI extends JFrame {
 		JOptionPane.showMessageDialog(Client.frame, message,"Error", JOptionPane.ERROR_MESSAGE);
 	}
 
+	/**
+	 * Requests the next documents page, then the following ones until the viewport is full
+	 *
+	 * @param documentsTable      the documents table
+	 * @param documentsScrollPane the documents table scroll pane
+	 */
+	private void fetchDocumentsPage(JTable documentsTable, JScrollPane documentsScrollPane) {
+		if (fetchingPage || !Operation.hasNextPage())
+			return;
+
+		fetchingPage = true;
+		SwingUtilities.invokeLater(() -> { // not while the table is changing
+			Operation.listNextPage();
+			fetchingPage = false;
+			if (!isViewportFull(documentsTable, documentsScrollPane)) // still no scroll bar
+				fetchDocumentsPage(documentsTable, documentsScrollPane);
+		});
+	}
+
+	/**
+	 * Checks if the documents table is taller than its viewport
+	 *
+	 * @param documentsTable      the documents table
+	 * @param documentsScrollPane the documents table scroll pane
+	 *
+	 * @return true if the table can be scrolled
+	 *         false otherwise
+	 */
+	private static boolean isViewportFull(JTable documentsTable, JScrollPane documentsScrollPane) {
+		return documentsTable.getPreferredSize().height > documentsScrollPane.getViewport().getExtentSize().height;
+	}
+
 	/**
 	 * Adds a document in the documents table and in the documents list
 	 *
@@ -434,7 +523,16 @@ public class ClientGUI extends JFrame {
 		if (documentsTableModel == null)
 			return;
 
+		Integer index = documentIndexes.get(document.getId());
+		if (index != null) { // updated document
+			documents.set(index, document);
+			documentsTableModel.setValueAt(document.isShared() ? sharedIcon : notSharedIcon, index, 2);
+			return;
+		}
+
 		addDocumentToTable(document);
+		if (document.getId() > 0)
+			documentIndexes.put(document.getId(), documents.size());
 		documents.add(document);
 	}
 
@@ -463,13 +561,14 @@ public class ClientGUI extends JFrame {
 	 * @param documentIndex the document table index
 	 */
 	private void updateSectionsTable(int documentIndex) {
-		sectionsTableModel.setRowCount(0);
 		lastSelectedDocument = documents.get(documentIndex);
 		lastSelectedSection = -1;
-		for (int i = 0; i < documents.get(documentIndex).getSections(); i++) {
-			Object[] data = {documents.get(documentIndex).getName() + " - section " + (i + 1)};
-			sectionsTableModel.addRow(data);
-		}
+
+		// a single table update, documents can have many sections
+		Object[][] data = new Object[lastSelectedDocument.getSections()][];
+		for (int i = 0; i < data.length; i++)
+			data[i] = new Object[] {lastSelectedDocument.getName() + " - section " + (i + 1)};
+		sectionsTableModel.setDataVector(data, new Object[] {"Section"});
 	}
 
 	/**
@@ -478,6 +577,7 @@ public class ClientGUI extends JFrame {
 	public void clearWorkspace() {
 		clearTables();
 		documents.clear();
+		documentIndexes.clear();
 	}
 
 	/**
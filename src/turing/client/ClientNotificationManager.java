@@ -30,13 +30,14 @@ public class ClientNotificationManager implements ClientNotificationManagerAPI {
 		JSONObject document = new JSONObject(notification);
 
 		// parsing notification
+		int     id       = document.optInt(Fields.DOC_ID);
 		String  name     = (String)  document.get(Fields.DOC_NAME);
 		String  creator  = (String)  document.get(Fields.DOC_CREATOR);
 		int     sections = (Integer) document.get(Fields.SECTIONS);
 		boolean shared   = (Boolean) document.get(Fields.IS_SHARED);
 
 		// add the new document
-		Client.frame.addDocument(new Document(name, creator, sections, shared));
+		Client.frame.addDocument(new Document(id, name, creator, sections, shared));
 		SwingUtilities.invokeLater(() -> Client.frame.showInfoDialog(creator + " invited you to edit " + name));
 	}
 }
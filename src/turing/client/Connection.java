@@ -1,7 +1,10 @@
 package turing.client;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 import turing.ClientNotificationManagerAPI;
+import turing.Fields;
+import turing.Protocol;
 import turing.ServerNotificationManagerAPI;
 
 import java.io.*;
@@ -13,6 +16,11 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 /**
  * Implements the connection and the communication with the server
@@ -23,8 +31,27 @@ public class Connection {
 	private Socket socket;
 
 	// streams with the server
-	private BufferedWriter writer;
-	private BufferedReader reader;
+	private BufferedOutputStream output;
+	private BufferedInputStream input;
+
+	private volatile boolean binaryProtocol = false; // binary frames instead of JSON lines
+	private volatile boolean closed = false;         // connection closed by the client
+
+	// requests waiting for a reply, in sending order
+	private final Map<Integer, PendingRequest> pendingReplies = new LinkedHashMap<>();
+	private int nextRequestId = 0;
+
+	/**
+	 * A request waiting for its reply
+	 */
+	private static class PendingRequest {
+		final CompletableFuture<JSONObject> reply = new CompletableFuture<>(); // final reply
+		final Consumer<JSONObject> chunkConsumer;                              // partial replies, if streamed
+
+		PendingRequest(Consumer<JSONObject> chunkConsumer) {
+			this.chunkConsumer = chunkConsumer;
+		}
+	}
 
 	/**
 	 * Initializes the connection with the server
@@ -36,8 +63,13 @@ public class Connection {
 	public Connection(InetSocketAddress address) throws IOException {
 		socket = new Socket();
 		socket.connect(address);
-		writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-		reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		output = new BufferedOutputStream(socket.getOutputStream());
+		input = new BufferedInputStream(socket.getInputStream());
+
+		// replies reader
+		Thread replyReader = new Thread(this::readReplies);
+		replyReader.setDaemon(true);
+		replyReader.start();
 	}
 
 	/**
@@ -47,22 +79,125 @@ public class Connection {
 	 * @return the reply message
 	 */
 	public JSONObject requestReply(JSONObject request) {
-		String replyString;
+		return getReply(requestAsync(request));
+	}
 
-		// send request and wait reply
+	/**
+	 * Waits for the reply of a request sent with requestAsync
+	 *
+	 * @param reply the future reply
+	 *
+	 * @return the reply message
+	 */
+	public JSONObject getReply(CompletableFuture<JSONObject> reply) {
 		try {
-			writer.write(request.toString());
-			writer.newLine();
-			writer.flush();
-			replyString = reader.readLine();
-		} catch (IOException e) {
+			return reply.get();
+		} catch (InterruptedException | ExecutionException e) {
 			Client.frame.showErrorDialog("Communication error");
 			return null;
 		}
-		if (replyString == null) // server disconnected
-			return null;
+	}
+
+	/**
+	 * Sends a request without waiting for its reply, so that more requests can be sent back to back
+	 *
+	 * @param request the message to send
+	 *
+	 * @return the future reply message, null if the server disconnects
+	 */
+	public CompletableFuture<JSONObject> requestAsync(JSONObject request) {
+		return requestStream(request, null);
+	}
+
+	/**
+	 * Sends a request whose reply is streamed in many messages, the ones with MORE = true are partial
+	 *
+	 * @param request       the message to send
+	 * @param chunkConsumer receives the partial replies on the reader thread
+	 *
+	 * @return the future final reply (end marker or error), null if the server disconnects
+	 */
+	public synchronized CompletableFuture<JSONObject> requestStream(JSONObject request,
+	                                                                Consumer<JSONObject> chunkConsumer) {
+		int requestId = nextRequestId++;
+		request.put(Fields.REQUEST_ID, requestId);
+
+		PendingRequest pending = new PendingRequest(chunkConsumer);
+		CompletableFuture<JSONObject> reply = pending.reply;
+		synchronized (pendingReplies) { // before sending, the reply could arrive immediately
+			pendingReplies.put(requestId, pending);
+		}
+
+		try {
+			if (binaryProtocol) {
+				output.write(Protocol.encode(request));
+			} else {
+				output.write(request.toString().getBytes(StandardCharsets.UTF_8));
+				output.write('\n');
+			}
+			output.flush();
+		} catch (IOException | IllegalArgumentException e) {
+			synchronized (pendingReplies) {
+				pendingReplies.remove(requestId);
+			}
+			reply.completeExceptionally(e);
+		}
+		return reply;
+	}
+
+	/**
+	 * Reads the replies and completes the pending requests, until the connection ends
+	 */
+	private void readReplies() {
+		Throwable error = null;
+		while (true) {
+			JSONObject reply;
+			try {
+				if (binaryProtocol) {
+					reply = Protocol.readFrame(input);
+				} else {
+					String replyString = Protocol.readLine(input);
+					reply = replyString == null ? null : new JSONObject(replyString);
+				}
+			} catch (IOException | IllegalArgumentException | JSONException e) {
+				error = closed ? null : e;
+				break;
+			}
+			if (reply == null) // server disconnected
+				break;
 
-		return new JSONObject(replyString);
+			// the server accepted the binary protocol at login, the next replies are frames
+			if (Fields.PROTOCOL_BINARY.equals(reply.opt(Fields.PROTOCOL)))
+				binaryProtocol = true;
+
+			// replies without id (e.g. unparsable requests) belong to the oldest request
+			PendingRequest pending;
+			boolean partial = reply.optBoolean(Fields.MORE);
+			synchronized (pendingReplies) {
+				Object requestId = reply.opt(Fields.REQUEST_ID);
+				if (!(requestId instanceof Integer) && !pendingReplies.isEmpty())
+					requestId = pendingReplies.keySet().iterator().next();
+				pending = partial ? pendingReplies.get(requestId) : pendingReplies.remove(requestId);
+			}
+			if (pending == null)
+				continue;
+
+			if (!partial)
+				pending.reply.complete(reply);
+			else if (pending.chunkConsumer != null)
+				pending.chunkConsumer.accept(reply);
+		}
+
+		// connection ended, no more replies
+		synchronized (pendingReplies) {
+			for (PendingRequest pending : pendingReplies.values()) {
+				if (error == null)
+					pending.reply.complete(null);
+				else
+					pending.reply.completeExceptionally(error);
+			}
+			pendingReplies.clear();
+		}
 	}
 
 	/**
@@ -90,6 +225,7 @@ public class Connection {
 	 * Closes the current connection with the server
 	 */
 	public void close() {
+		closed = true;
 		try {
 			socket.close();
 		} catch (IOException e) {
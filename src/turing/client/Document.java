@@ -1,9 +1,13 @@
 package turing.client;
 
+import org.json.JSONObject;
+import turing.Fields;
+
 /**
  * Represents a document inside the client
  */
 public class Document {
+	private int id; // 0 if unknown
 	private String name;
 	private String creator;
 	private int sections;
@@ -12,18 +16,43 @@ public class Document {
 	/**
 	 * Creates a new document
 	 *
+	 * @param id       the document ID, 0 if unknown
 	 * @param name     the document name
 	 * @param creator  the creator name
 	 * @param sections the number of sections
 	 * @param shared   the shared status
 	 */
-	public Document(String name, String creator, int sections, boolean shared) {
+	public Document(int id, String name, String creator, int sections, boolean shared) {
+		this.id = id;
 		this.name = name;
 		this.creator = creator;
 		this.sections = sections;
 		this.shared = shared;
 	}
 
+	/**
+	 * Adds the document identification to a request, the ID if known
+	 *
+	 * @param request the request
+	 *
+	 * @return the request
+	 */
+	public JSONObject identify(JSONObject request) {
+		if (id > 0)
+			return request.put(Fields.DOC_ID, id);
+		return request.put(Fields.DOC_NAME, name)
+				.put(Fields.DOC_CREATOR, creator);
+	}
+
+	/**
+	 * Returns the document ID
+	 *
+	 * @return the document ID, 0 if unknown
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Returns the document name
 	 *
@@ -4,6 +4,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import turing.Fields;
+import turing.Patch;
 import turing.UserManagerAPI;
 
 import javax.swing.*;
@@ -13,6 +14,7 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class that performs the client operations
@@ -20,6 +22,18 @@ import java.rmi.registry.Registry;
 public abstract class Operation {
 	private static Connection connection; // connection with the server
 
+	// section being edited, to send only the changes at the end
+	private static String editingBase    = null; // content received at the edit start
+	private static long   editingVersion = 0;    // section version received at the edit start
+	private static Timer  leaseRenewal   = null; // renews the section edit lock while editing
+
+	// documents in the workspace, to ask only the changed ones
+	private static String listUsername = null; // user of the listed documents
+	private static long   listVersion  = 0;    // listing version received, 0 if none
+	private static String listCursor   = null; // cursor of the next page, null if every page received
+	private static String listFilter   = null; // LIST_FILTER value, null for every document
+	private static String listPrefix   = "";   // document name prefix, empty for every name
+
 	/**
 	 * Creates a new operation class
 	 */
@@ -96,8 +110,20 @@ public abstract class Operation {
 		request.put(Fields.OP, Fields.OP_LOGIN)
 				.put(Fields.USERNAME, username)
 				.put(Fields.PASSWORD, password);
+		if (Client.BINARY_PROTOCOL)
+			request.put(Fields.PROTOCOL, Fields.PROTOCOL_BINARY);
+		// the workspace documents are not this user's ones, or are filtered while the filter bar is rebuilt empty
+		if (!username.equals(listUsername) || listFilter != null || !listPrefix.isEmpty()) {
+			listUsername = username;
+			listVersion = 0;
+			listFilter = null;
+			listPrefix = "";
+		}
 
-		JSONObject reply = connection.requestReply(request);
+		// the documents are requested together with the login, unless the protocol changes after it
+		CompletableFuture<JSONObject> loginReply = connection.requestAsync(request);
+		CompletableFuture<JSONObject> listReply = Client.BINARY_PROTOCOL ? null : connection.requestAsync(listRequest());
+		JSONObject reply = connection.getReply(loginReply);
 
 		if (isErrorMessage(reply)) {
 			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
@@ -107,7 +133,12 @@ public abstract class Operation {
 		connection.registerForNotifications(username, password);
 		Client.frame.username = username;
 		Client.frame.showWorkspace(); // create the workspace window
-		list(); // download table data from server
+
+		// download table data from server
+		if (listReply != null)
+			updateDocuments(connection.getReply(listReply));
+		else
+			list();
 	}
 
 	/**
@@ -139,14 +170,17 @@ public abstract class Operation {
 				.put(Fields.DOC_NAME, documentName)
 				.put(Fields.SECTIONS, sections);
 
-		JSONObject reply = connection.requestReply(request);
+		// the updated documents are requested without waiting the creation
+		CompletableFuture<JSONObject> createReply = connection.requestAsync(request);
+		CompletableFuture<JSONObject> listReply = connection.requestAsync(listRequest());
+		JSONObject reply = connection.getReply(createReply);
 
 		if (isErrorMessage(reply)) {
 			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
 			return;
 		}
 
-		list(); // updating table data
+		updateDocuments(connection.getReply(listReply)); // updating table data
 	}
 
 	/**
@@ -160,20 +194,27 @@ public abstract class Operation {
 			return;
 		}
 
-		// create show document request
+		// create show document request, the sections are streamed
 		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_SHOW_DOC)
-				.put(Fields.DOC_NAME, document.getName())
-				.put(Fields.DOC_CREATOR, document.getCreator());
-
-		JSONObject reply = connection.requestReply(request);
-
-		if (isErrorMessage(reply)) {
-			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
-			return;
-		}
-
-		Client.frame.showDocumentWindow((String) reply.get(Fields.DOC_CONTENT));
+		document.identify(request.put(Fields.OP, Fields.OP_SHOW_DOC))
+				.put(Fields.STREAM, true);
+
+		// the window is filled while the sections arrive, without blocking the GUI
+		Client.frame.showDocumentWindow("");
+		CompletableFuture<JSONObject> end = connection.requestStream(request, chunk -> {
+			String sectionContent = (String) chunk.get(Fields.SEC_CONTENT);
+			SwingUtilities.invokeLater(() -> Client.frame.appendDocumentText(sectionContent));
+		});
+		end.whenComplete((reply, e) -> SwingUtilities.invokeLater(() -> {
+			if (reply == null) {
+				Client.frame.showErrorDialog("Communication error");
+			} else if (isErrorMessage(reply)) {
+				Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
+				Client.frame.showWorkspace();
+			} else if (reply.has(Fields.DOC_CONTENT)) { // server without streaming
+				Client.frame.appendDocumentText((String) reply.get(Fields.DOC_CONTENT));
+			}
+		}));
 	}
 
 	/**
@@ -190,9 +231,7 @@ public abstract class Operation {
 
 		// create show section request
 		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_SHOW_SEC)
-				.put(Fields.DOC_NAME, document.getName())
-				.put(Fields.DOC_CREATOR, document.getCreator())
+		document.identify(request.put(Fields.OP, Fields.OP_SHOW_SEC))
 				.put(Fields.DOC_SECTION, section);
 
 		JSONObject reply = connection.requestReply(request);
@@ -219,9 +258,7 @@ public abstract class Operation {
 
 		// create edit section request
 		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_EDIT_SEC)
-				.put(Fields.DOC_NAME, document.getName())
-				.put(Fields.DOC_CREATOR, document.getCreator())
+		document.identify(request.put(Fields.OP, Fields.OP_EDIT_SEC))
 				.put(Fields.DOC_SECTION, section);
 
 		JSONObject reply = connection.requestReply(request);
@@ -237,7 +274,42 @@ public abstract class Operation {
 		} catch (JSONException | UnknownHostException e) {
 			Client.frame.showErrorDialog("Chat unavailable");
 		}
-		Client.frame.showEditingWindow((String) reply.get(Fields.SEC_CONTENT), chatAddress);
+		editingBase = (String) reply.get(Fields.SEC_CONTENT);
+		editingVersion = reply.optLong(Fields.VERSION, -1);
+		Client.frame.showEditingWindow(editingBase, chatAddress);
+
+		// renewing the lease three times per period, so that a late renewal doesn't lose it
+		long leaseMillis = reply.optLong(Fields.LEASE_MILLIS);
+		if (leaseMillis > 0) {
+			leaseRenewal = new Timer((int) Math.max(leaseMillis / 3, 1), event -> renewLease());
+			leaseRenewal.start();
+		}
+	}
+
+	/**
+	 * Renews the section edit lock, without waiting the reply
+	 */
+	private static void renewLease() {
+		JSONObject request = new JSONObject();
+		request.put(Fields.OP, Fields.OP_RENEW_LEASE);
+
+		Timer renewal = leaseRenewal;
+		connection.requestAsync(request).whenComplete((reply, e) -> SwingUtilities.invokeLater(() -> {
+			if (reply != null && isErrorMessage(reply) && renewal == leaseRenewal) { // still the same edit
+				stopLeaseRenewal();
+				Client.frame.showErrorDialog("Edit lease expired, the changes cannot be saved anymore");
+			}
+		}));
+	}
+
+	/**
+	 * Stops renewing the section edit lock
+	 */
+	private static void stopLeaseRenewal() {
+		if (leaseRenewal != null) {
+			leaseRenewal.stop();
+			leaseRenewal = null;
+		}
 	}
 
 	/**
@@ -246,18 +318,34 @@ public abstract class Operation {
 	 * @param sectionContent the new section content
 	 */
 	public static void endEdit(String sectionContent) {
-		// create end edit request
-		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_END_EDIT)
-				.put(Fields.SEC_CONTENT, sectionContent);
-
-		JSONObject reply = connection.requestReply(request);
+		JSONObject reply = null;
+
+		// sending only the changes, if smaller than the content
+		if (sectionContent != null && editingBase != null && editingVersion >= 0) {
+			Patch patch = Patch.diff(editingBase, sectionContent);
+			if (patch.size() < sectionContent.length() / 2) {
+				JSONObject request = new JSONObject();
+				request.put(Fields.OP, Fields.OP_END_EDIT)
+						.put(Fields.VERSION, editingVersion)
+						.put(Fields.BASE_LENGTH, patch.getBaseLength())
+						.put(Fields.PATCH, patch.toJSON());
+				reply = connection.requestReply(request);
+			}
+		}
 
-		if (isErrorMessage(reply)) {
-			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
-			return;
+		// sending the full content, also if the patch has been rejected and the section is still locked
+		if (reply == null || (isErrorMessage(reply) && reply.optBoolean(Fields.STILL_EDITING))) {
+			JSONObject request = new JSONObject();
+			request.put(Fields.OP, Fields.OP_END_EDIT)
+					.put(Fields.SEC_CONTENT, sectionContent);
+			reply = connection.requestReply(request);
 		}
 
+		// the editing has ended, also with an error
+		stopLeaseRenewal();
+		editingBase = null;
+		if (isErrorMessage(reply))
+			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
 		Client.frame.showWorkspace();
 	}
 
@@ -270,10 +358,8 @@ public abstract class Operation {
 	public static void invite(String username, Document document) {
 		// create invite request
 		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_INVITE)
-				.put(Fields.USERNAME, username)
-				.put(Fields.DOC_NAME, document.getName())
-				.put(Fields.DOC_CREATOR, document.getCreator());
+		document.identify(request.put(Fields.OP, Fields.OP_INVITE)
+				.put(Fields.USERNAME, username));
 
 		JSONObject reply = connection.requestReply(request);
 
@@ -290,23 +376,110 @@ public abstract class Operation {
 	 * Performs the list operation
 	 */
 	public static void list() {
-		// create list request
-		JSONObject request = new JSONObject();
-		request.put(Fields.OP, Fields.OP_LIST);
+		updateDocuments(connection.requestReply(listRequest()));
+	}
 
+	/**
+	 * Performs the list operation with new filters, replacing the workspace documents
+	 *
+	 * @param filter the LIST_FILTER value, null for every document
+	 * @param prefix the document name prefix, empty for every name
+	 */
+	public static void list(String filter, String prefix) {
+		listFilter = filter;
+		listPrefix = prefix;
+		listVersion = 0;
+		list();
+	}
+
+	/**
+	 * Checks if the workspace misses some pages of the documents
+	 *
+	 * @return true if there is a next page
+	 *         false if every page has been received
+	 */
+	public static boolean hasNextPage() {
+		return listCursor != null;
+	}
+
+	/**
+	 * Requests the next page of the documents, if any
+	 */
+	public static void listNextPage() {
+		if (listCursor == null) // every page received
+			return;
+
+		JSONObject request = listRequest(false).put(Fields.CURSOR, listCursor);
 		JSONObject reply = connection.requestReply(request);
+		if (isErrorMessage(reply)) {
+			listCursor = null;
+			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
+			return;
+		}
+
+		listCursor = reply.optString(Fields.CURSOR, null);
+		addDocuments(reply.getJSONArray(Fields.DOCS));
+	}
 
+	/**
+	 * Creates a list request, for the changed documents only if the workspace has a listing
+	 *
+	 * @return the list request
+	 */
+	private static JSONObject listRequest() {
+		return listRequest(listVersion > 0);
+	}
+
+	/**
+	 * Creates a list request with the current filters
+	 *
+	 * @param changed true to ask the documents changed after the workspace listing, false for a page
+	 *
+	 * @return the list request
+	 */
+	private static JSONObject listRequest(boolean changed) {
+		JSONObject request = new JSONObject();
+		request.put(Fields.OP, Fields.OP_LIST);
+		if (listFilter != null)
+			request.put(Fields.LIST_FILTER, listFilter);
+		if (!listPrefix.isEmpty())
+			request.put(Fields.NAME_PREFIX, listPrefix);
+		if (changed)
+			request.put(Fields.LIST_VERSION, listVersion);
+		else
+			request.put(Fields.PAGE_SIZE, Client.LIST_PAGE_SIZE);
+		return request;
+	}
+
+	/**
+	 * Updates the workspace with the documents of a list reply
+	 *
+	 * @param reply the list reply
+	 */
+	private static void updateDocuments(JSONObject reply) {
 		if (isErrorMessage(reply)) {
 			Client.frame.showErrorDialog((String) reply.get(Fields.ERR_MSG));
 			return;
 		}
 
-		Client.frame.clearWorkspace();
+		if (!reply.optBoolean(Fields.LIST_DELTA)) { // first page, the next ones are fetched while scrolling
+			Client.frame.clearWorkspace();
+			listCursor = reply.optString(Fields.CURSOR, null);
+		}
+		listVersion = reply.optLong(Fields.LIST_VERSION);
+		addDocuments(reply.getJSONArray(Fields.DOCS));
+	}
 
+	/**
+	 * Adds the listed documents to the workspace, replacing the changed ones
+	 *
+	 * @param docArray the listed documents
+	 */
+	private static void addDocuments(JSONArray docArray) {
 		// downloading documents metadata
-		JSONArray docArray = reply.getJSONArray(Fields.DOCS);
 		for (int i = 0; i < docArray.length(); i++) {
 			Client.frame.addDocument(new Document(
+					docArray.optJSONObject(i).optInt(Fields.DOC_ID),
 					(String)  docArray.optJSONObject(i).get(Fields.DOC_NAME),
 					(String)  docArray.optJSONObject(i).get(Fields.DOC_CREATOR),
 					(Integer) docArray.optJSONObject(i).get(Fields.SECTIONS),
@@ -2,15 +2,28 @@ package turing.server;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements a concurrent multicast address manager
+ *
+ * The addresses from 239.0.0.0 to 239.255.255.255 (Organization-Local Scope) are numbered by their
+ * last three bytes: the never used ones are given in order, then the freed ones, oldest first,
+ * so that an address is reused as late as possible. Allocations and frees take constant time.
  */
 public class AddressManager {
-	private TreeSet<InetAddress> addresses = new TreeSet<>(new InetAddressComparator()); // set of addresses
-	private int c = 0, b = 0, a = 0; // address parts
-	private double maxAddresses = Math.pow(256, 3); // number of addresses from 239.0.0.0 to 239.255.255.255
+	private static final int POOL_SIZE = 1 << 24; // number of addresses from 239.0.0.0 to 239.255.255.255
+	private static final byte PREFIX = (byte) 239;
+
+	private final long[] used = new long[POOL_SIZE / Long.SIZE]; // bitmap of the reserved addresses
+	private int nextUnused = 0;                                    // first address never reserved
+
+	// freed addresses, in a ring buffer grown when full
+	private int[] freed = new int[64];
+	private int freedHead = 0;
+	private int freedCount = 0;
+
+	private final ReentrantLock lock = new ReentrantLock(); // protects the bitmap and the free addresses
 
 	/**
 	 * Creates a new address manager
@@ -25,28 +38,30 @@ public class AddressManager {
 	 * @return the generated address, if free
 	 *         null otherwise
 	 */
-	public synchronized InetAddress createAddress() {
-		InetAddress address;
+	public InetAddress createAddress() {
+		int number;
 
-		// search for a free address
-		for (long i = 0; i < maxAddresses; i++, nextAddress()) {
-			try {
-				// 239.0.0.0 - 239.255.255.255 Organization-Local Scope
-				address = InetAddress.getByName("239." + c + "." + b + "." + a);
-			} catch (UnknownHostException e) {
-				continue;
-			}
-
-			// valid address?
-			if (address.isMulticastAddress() && !addresses.contains(address)) {
-				nextAddress();
-				addresses.add(address);
-				return address;
+		lock.lock();
+		try {
+			if (nextUnused < POOL_SIZE) {
+				number = nextUnused++;
+			} else if (freedCount > 0) {
+				number = freed[freedHead];
+				freedHead = (freedHead + 1) % freed.length;
+				freedCount--;
+			} else { // all addresses already used
+				return null;
 			}
+			used[number >>> 6] |= 1L << number;
+		} finally {
+			lock.unlock();
 		}
 
-		// all addresses already used
-		return null;
+		try {
+			return InetAddress.getByAddress(new byte[] {PREFIX, (byte) (number >>> 16), (byte) (number >>> 8), (byte) number});
+		} catch (UnknownHostException e) { // never thrown for 4 bytes
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
@@ -55,18 +70,29 @@ public class AddressManager {
 	 * @param address the address to free
 	 */
 	public void freeAddress(InetAddress address) {
-		addresses.remove(address);
-	}
+		byte[] bytes = address.getAddress();
+		if (bytes.length != 4 || bytes[0] != PREFIX) // not from this manager
+			return;
+		int number = (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
 
-	/**
-	 * Generates the next multicast address
-	 */
-	private void nextAddress() {
-		a = (a + 1) % 256;
-		if (a == 0) {
-			b = (b + 1) % 256;
-			if (b == 0)
-				c = (c + 1) % 256;
+		lock.lock();
+		try {
+			long bit = 1L << number;
+			if ((used[number >>> 6] & bit) == 0) // not reserved
+				return;
+			used[number >>> 6] &= ~bit;
+
+			if (freedCount == freed.length) { // growing the ring buffer, oldest first
+				int[] bigger = new int[freed.length * 2];
+				for (int i = 0; i < freedCount; i++)
+					bigger[i] = freed[(freedHead + i) % freed.length];
+				freed = bigger;
+				freedHead = 0;
+			}
+			freed[(freedHead + freedCount) % freed.length] = number;
+			freedCount++;
+		} finally {
+			lock.unlock();
 		}
 	}
 }
@@ -0,0 +1,247 @@
+package turing.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements the chat sender shared by the documents, a small pool of multicast channels
+ * that can send to any group
+ *
+ * A group is always served by the same channel, so its messages are sent in order. Each channel has
+ * a sender thread that sends a lone message at once; when more messages are queued, it waits a short
+ * batch window, then packs the messages queued for the same group in datagrams of at most MTU bytes,
+ * one message per line.
+ * Messages are encoded in UTF-8 directly in a direct buffer of the channel, and a message longer
+ * than the MTU is truncated between two characters.
+ */
+public class ChatSender {
+	private static final int MAX_BATCH = 256; // max messages sent together
+
+	private final Worker[] workers;
+	private volatile boolean closed = false;
+
+	/**
+	 * A queued chat message
+	 */
+	private static final class Message {
+		final InetSocketAddress group;
+		final String username;
+		final String text;
+
+		Message(InetSocketAddress group, String username, String text) {
+			this.group = group;
+			this.username = username;
+			this.text = text;
+		}
+	}
+
+	private static final Message CLOSE = new Message(null, null, null); // wakes up the sender threads, never sent
+
+	/**
+	 * Creates a new chat sender
+	 *
+	 * @param channels    the number of channels, at least 1
+	 * @param mtu         the max datagram size in bytes
+	 * @param batchMillis how long the messages are collected when more are queued, 0 to send them as they arrive
+	 *
+	 * @throws IOException if a channel cannot be created
+	 */
+	public ChatSender(int channels, int mtu, long batchMillis) throws IOException {
+		workers = new Worker[Math.max(channels, 1)];
+		NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName("localhost"));
+		try {
+			for (int i = 0; i < workers.length; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				workers[i] = new Worker(channel, mtu, batchMillis);
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i], "chat-sender-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Queues a message for a chat group
+	 *
+	 * @param group    the group address and port
+	 * @param username the sender username, prefixed to the message
+	 * @param text     the message
+	 *
+	 * @return true if the message has been queued
+	 *         false if the sender is closed
+	 */
+	public boolean send(InetSocketAddress group, String username, String text) {
+		if (closed)
+			return false;
+		workers[Math.floorMod(group.hashCode(), workers.length)].queue.add(new Message(group, username, text));
+		return true;
+	}
+
+	/**
+	 * Stops the sender threads and closes the channels, the queued messages are dropped
+	 */
+	public void close() {
+		closed = true;
+		for (Worker worker : workers) {
+			if (worker == null)
+				continue;
+			try {
+				worker.channel.close(); // the sender thread ends at the next message
+			} catch (IOException e) {
+				System.err.println("Cannot close chat channel: " + e.getMessage());
+			}
+			worker.queue.add(CLOSE); // wakes up the sender thread
+		}
+	}
+
+	/**
+	 * Sends the messages of the groups assigned to a channel
+	 */
+	private class Worker implements Runnable {
+		final DatagramChannel channel;
+		final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+		private final long batchNanos;
+
+		// reused for every batch
+		private final ByteBuffer datagram;                     // direct, MTU bytes
+		private final List<Message> batch = new ArrayList<>(MAX_BATCH);
+		private final boolean[] sent = new boolean[MAX_BATCH];
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		/**
+		 * Creates a new channel worker
+		 *
+		 * @param channel     the multicast channel
+		 * @param mtu         the max datagram size in bytes
+		 * @param batchMillis the batch window
+		 */
+		Worker(DatagramChannel channel, int mtu, long batchMillis) {
+			this.channel = channel;
+			this.datagram = ByteBuffer.allocateDirect(mtu);
+			this.batchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					batch.add(queue.take());
+					boolean queued = queue.drainTo(batch, MAX_BATCH - batch.size()) > 0; // a lone message is sent at once
+					if (queued && batchNanos > 0 && batch.size() < MAX_BATCH) {
+						TimeUnit.NANOSECONDS.sleep(batchNanos); // a busy chat, collecting the messages sent meanwhile
+						queue.drainTo(batch, MAX_BATCH - batch.size());
+					}
+				} catch (InterruptedException e) {
+					continue; // checking if closed
+				}
+				batch.removeIf(message -> message == CLOSE);
+				if (closed)
+					break;
+
+				// a datagram for each group, more if the messages don't fit in the MTU
+				for (int i = 0; i < batch.size(); i++) {
+					if (sent[i])
+						continue;
+					InetSocketAddress group = batch.get(i).group;
+					datagram.clear();
+					for (int j = i; j < batch.size(); j++) {
+						Message message = batch.get(j);
+						if (sent[j] || !group.equals(message.group))
+							continue;
+						sent[j] = true;
+						if (!append(message)) { // full, sending the previous messages
+							send(group);
+							append(message);
+						}
+					}
+					send(group);
+				}
+				batch.clear();
+				Arrays.fill(sent, false);
+			}
+		}
+
+		/**
+		 * Encodes a message at the end of the datagram, as "username: text" on a new line
+		 *
+		 * @param message the message to encode
+		 *
+		 * @return true if the message has been added, truncated if it is alone and too long
+		 *         false if it doesn't fit after the other messages (the datagram is unchanged)
+		 */
+		private boolean append(Message message) {
+			int start = datagram.position();
+			if (start > 0) {
+				if (!datagram.hasRemaining())
+					return false;
+				datagram.put((byte) '\n');
+			}
+
+			encoder.reset();
+			boolean fits = encode(message.username, false) && encode(": ", false) && encode(message.text, true);
+			if (!fits && start > 0) { // in a new datagram
+				datagram.position(start);
+				return false;
+			}
+			return true; // the encoder never splits a character, so a truncated message stays valid
+		}
+
+		/**
+		 * Encodes a string in the datagram
+		 *
+		 * @param string     the string to encode
+		 * @param endOfInput true for the last string of the message
+		 *
+		 * @return true if the string fits in the datagram
+		 *         false if it has been truncated
+		 */
+		private boolean encode(String string, boolean endOfInput) {
+			CoderResult result = encoder.encode(CharBuffer.wrap(string), datagram, endOfInput);
+			if (result.isOverflow())
+				return false;
+			return !endOfInput || !encoder.flush(datagram).isOverflow();
+		}
+
+		/**
+		 * Sends the datagram, if not empty
+		 *
+		 * @param group the destination group
+		 */
+		private void send(InetSocketAddress group) {
+			datagram.flip();
+			try {
+				if (datagram.hasRemaining())
+					channel.send(datagram, group);
+			} catch (IOException e) {
+				if (!closed)
+					System.err.println("Cannot send chat message: " + e.getMessage());
+			}
+			datagram.clear();
+		}
+	}
+}
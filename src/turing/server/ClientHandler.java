@@ -1,17 +1,22 @@
 package turing.server;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import turing.Fields;
+import turing.Patch;
+import turing.Protocol;
 import turing.server.exceptions.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
-import java.util.List;
+import java.util.Iterator;
+import java.util.function.BooleanSupplier;
 
 import static java.lang.System.out;
 
@@ -27,10 +32,15 @@ public class ClientHandler implements Runnable {
 		EDITING     // logged and editing
 	}
 
-	private Socket clientConnection;           // connection with the client
-	private BufferedWriter writer;             // output stream with the client
+	private Socket clientConnection;           // connection with the client (blocking mode only)
+	private OutputStream output;               // output stream with the client
+	private WritableByteChannel rawOutput;     // output channel with the client, for file transfers
 	private User currentUser = null;           // currently logged user
 	private Status status = Status.LOGGED_OUT; // current user status
+	private boolean binaryProtocol = false;    // binary frames instead of JSON lines
+	private Object requestId = null;           // id of the request being handled, copied in its reply
+	private final BooleanSupplier backlogged;  // true if the client has still to read many replies
+	private DocumentStream stream = null;      // document being streamed, null if none
 
 	private static boolean stop = false;       // all-threads stop flag
 
@@ -41,6 +51,35 @@ public class ClientHandler implements Runnable {
 	 */
 	public ClientHandler(Socket clientConnection) {
 		this.clientConnection = clientConnection;
+		this.backlogged = () -> false; // the writes block until the client reads
+	}
+
+	/**
+	 * Creates a new client handler that writes the replies on a stream,
+	 * used by the event loops that read the requests on their own
+	 *
+	 * @param output     the output stream with the client
+	 * @param backlogged true if the replies written and not sent yet should be sent before the next stream chunks
+	 */
+	public ClientHandler(OutputStream output, BooleanSupplier backlogged) {
+		this.output = output;
+		this.rawOutput = Channels.newChannel(output);
+		this.backlogged = backlogged;
+	}
+
+	/**
+	 * A document streamed a section at a time
+	 */
+	private static class DocumentStream {
+		final Document document;
+		final Iterator<Section> sections; // the next ones, weakly consistent
+		final Object requestId;           // id of the show document request
+
+		DocumentStream(Document document, Object requestId) {
+			this.document = document;
+			this.sections = document.getUsedSections().iterator();
+			this.requestId = requestId;
+		}
 	}
 
 	/**
@@ -48,7 +87,7 @@ public class ClientHandler implements Runnable {
 	 */
 	@Override
 	public void run() {
-		BufferedReader reader; // input stream with the client
+		BufferedInputStream input; // input stream with the client
 
 		// setting timeout
 		try {
@@ -60,18 +99,19 @@ public class ClientHandler implements Runnable {
 
 		// open streams
 		try {
-			reader = new BufferedReader(new InputStreamReader(clientConnection.getInputStream(), StandardCharsets.UTF_8));
-			writer = new BufferedWriter(new OutputStreamWriter(clientConnection.getOutputStream(), StandardCharsets.UTF_8));
+			input = new BufferedInputStream(clientConnection.getInputStream());
+			output = new BufferedOutputStream(clientConnection.getOutputStream());
+			rawOutput = clientConnection.getChannel() != null ? // socket channels support zero copy transfers
+					clientConnection.getChannel() : Channels.newChannel(output);
 		} catch (IOException e) {
 			System.err.println("Cannot open streams with the client: " + e.getMessage());
 			return;
 		}
 
 		while (!stop) {
-			// read request
-			String requestString;
+			boolean connected;
 			try {
-				requestString = reader.readLine();
+				connected = handleNextRequest(input);
 			} catch (SocketTimeoutException e) {
 				continue;
 			} catch (IOException e) { // communication error with the client
@@ -81,41 +121,23 @@ public class ClientHandler implements Runnable {
 			}
 
 			// client disconnected
-			if (requestString == null) {
-				logout();
+			if (!connected) {
+				disconnect();
 				try {
-					reader.close();
-					writer.close();
+					input.close();
+					output.close();
 					clientConnection.close();
 				} catch (IOException e) {
 					System.err.println("Cannot close client socket or streams: " + e.getMessage());
 				}
-				out.println((currentUser == null ? "User" : currentUser.getUsername()) + " disconnected");
 				break; // terminate thread
 			}
-
-			// parsing request
-			JSONObject request;
-			try {
-				request = new JSONObject(requestString);
-			} catch (JSONException e) {
-				sendError(e.getMessage());
-				continue;
-			}
-
-			// validating request
-			if (!isValid(request)) {
-				sendError("Bad request format");
-				continue;
-			}
-
-			handleOperation(request);
 		}
 
 		// closing streams and socket
 		try {
-			reader.close();
-			writer.close();
+			input.close();
+			output.close();
 			clientConnection.close();
 		} catch (IOException e) {
 			System.err.println("Cannot close client socket or streams: " + e.getMessage());
@@ -123,6 +145,152 @@ public class ClientHandler implements Runnable {
 		out.println("Handler " + Thread.currentThread().getName() + " terminated");
 	}
 
+	/**
+	 * Waits for the next request, in the negotiated protocol, and handles it
+	 *
+	 * @param input the input stream with the client
+	 *
+	 * @return true if the request has been handled
+	 *         false if the client disconnected
+	 *
+	 * @throws SocketTimeoutException if no request arrived before the timeout
+	 * @throws IOException            if a network error occurs
+	 */
+	private boolean handleNextRequest(BufferedInputStream input) throws IOException {
+		// waiting the first byte, so that the timeout never interrupts a partially read request
+		input.mark(1);
+		if (input.read() == -1)
+			return false;
+		input.reset();
+
+		JSONObject request = null;
+		String requestString = null;
+		clientConnection.setSoTimeout(0);
+		try {
+			if (binaryProtocol)
+				request = Protocol.readFrame(input);
+			else
+				requestString = Protocol.readLine(input);
+		} catch (IllegalArgumentException e) { // malformed frame content, the next frame can still be read
+			rejectRequest(e.getMessage());
+			return true;
+		} finally {
+			clientConnection.setSoTimeout(Server.TIMEOUT_MILLIS);
+		}
+
+		if (request != null)
+			handleRequest(request);
+		else if (requestString != null)
+			handleRequest(requestString);
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Parses, validates and handles a request line
+	 *
+	 * @param requestString the request read from the client
+	 */
+	void handleRequest(String requestString) {
+		JSONObject request = parseRequest(requestString);
+		if (request != null)
+			handleRequest(request);
+	}
+
+	/**
+	 * Parses a request line, replying with the error if malformed
+	 *
+	 * @param requestString the request read from the client
+	 *
+	 * @return the parsed request, if well formed
+	 *         null otherwise
+	 */
+	JSONObject parseRequest(String requestString) {
+		try {
+			return new JSONObject(requestString);
+		} catch (JSONException e) {
+			sendError(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if handling a request may wait for the disk, so that the event loops hand it to a worker
+	 *
+	 * @param request the request to check
+	 *
+	 * @return true if the request reads or writes sections, or creates a document
+	 *         false otherwise
+	 */
+	static boolean mayBlock(JSONObject request) {
+		switch (request.optString(Fields.OP)) {
+			case Fields.OP_CREATE_DOC:
+			case Fields.OP_SHOW_DOC:
+			case Fields.OP_SHOW_SEC:
+			case Fields.OP_EDIT_SEC:
+			case Fields.OP_END_EDIT:
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Validates and handles a request
+	 *
+	 * @param request the request read from the client
+	 */
+	void handleRequest(JSONObject request) {
+		requestId = request.opt(Fields.REQUEST_ID); // pipelined requests are tagged by the client
+
+		// validating request
+		if (!isValid(request))
+			sendError("Bad request format");
+		else
+			handleOperation(request);
+
+		requestId = null;
+	}
+
+	/**
+	 * Replies to a request that cannot be decoded
+	 *
+	 * @param reason the decoding error
+	 */
+	void rejectRequest(String reason) {
+		sendError(reason);
+	}
+
+	/**
+	 * Returns the protocol negotiated at login
+	 *
+	 * @return true if requests and replies are binary frames
+	 *         false if they are JSON lines
+	 */
+	boolean usesBinaryProtocol() {
+		return binaryProtocol;
+	}
+
+	/**
+	 * Checks if a document is being streamed, the next requests must wait its end
+	 *
+	 * @return true if the stream is not finished
+	 *         false otherwise
+	 */
+	boolean isStreaming() {
+		return stream != null;
+	}
+
+	/**
+	 * Releases the client resources after a disconnection
+	 */
+	void disconnect() {
+		logout();
+		out.println((currentUser == null ? "User" : currentUser.getUsername()) + " disconnected");
+	}
+
 	/**
 	 * Checks if the message request is valid
 	 *
@@ -143,19 +311,14 @@ public class ClientHandler implements Runnable {
 				return request.has(Fields.DOC_NAME) && request.has(Fields.SECTIONS);
 
 			case Fields.OP_SHOW_DOC:
-				return request.has(Fields.DOC_NAME) && request.has(Fields.DOC_CREATOR);
+				return hasDocument(request);
 
 			case Fields.OP_SHOW_SEC:
-				return request.has(Fields.DOC_NAME) && request.has(Fields.DOC_CREATOR) &&
-						request.has(Fields.DOC_SECTION);
-
 			case Fields.OP_EDIT_SEC:
-				return request.has(Fields.DOC_CREATOR) && request.has(Fields.DOC_NAME) &&
-						request.has(Fields.DOC_SECTION);
+				return hasDocument(request) && request.has(Fields.DOC_SECTION);
 
 			case Fields.OP_INVITE:
-				return request.has(Fields.USERNAME) && request.has(Fields.DOC_CREATOR) &&
-						request.has(Fields.DOC_NAME);
+				return request.has(Fields.USERNAME) && hasDocument(request);
 
 			case Fields.OP_CHAT_MSG:
 				return request.has(Fields.CHAT_MSG);
@@ -165,6 +328,19 @@ public class ClientHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * Checks if a request identifies a document
+	 *
+	 * @param request the message request to check
+	 *
+	 * @return true if the request contains DOC_ID, or DOC_CREATOR and DOC_NAME
+	 *         false otherwise
+	 */
+	private static boolean hasDocument(JSONObject request) {
+		return (request.has(Fields.DOC_ID) && request.get(Fields.DOC_ID) instanceof Integer) ||
+				(request.has(Fields.DOC_CREATOR) && request.has(Fields.DOC_NAME));
+	}
+
 	/**
 	 * Switches the request to the handlers
 	 *
@@ -189,7 +365,7 @@ public class ClientHandler implements Runnable {
 					case Fields.OP_SHOW_SEC:   showSection(request); break;
 					case Fields.OP_EDIT_SEC:   editSection(request); break;
 					case Fields.OP_INVITE:     invite(request); break;
-					case Fields.OP_LIST:       list(); break;
+					case Fields.OP_LIST:       list(request); break;
 					default: sendError("You can't request this operation while logged " +
 							"and not editing any section: " + operation);
 				}
@@ -197,8 +373,9 @@ public class ClientHandler implements Runnable {
 
 			case EDITING:
 				switch (operation) {
-					case Fields.OP_END_EDIT: endEdit(request); break;
-					case Fields.OP_CHAT_MSG: chatMessage(request); break;
+					case Fields.OP_END_EDIT:    endEdit(request); break;
+					case Fields.OP_CHAT_MSG:    chatMessage(request); break;
+					case Fields.OP_RENEW_LEASE: renewLease(); break;
 					default: sendError("You can't request this operation while editing: " + operation);
 				}
 		}
@@ -210,13 +387,7 @@ public class ClientHandler implements Runnable {
 	private void sendAck() {
 		JSONObject message = new JSONObject();
 		message.put(Fields.STATUS, Fields.STATUS_OK);
-		try {
-			writer.write(message.toString());
-			writer.newLine();
-			writer.flush();
-		} catch (IOException e) {
-			System.err.println("communication error: " + e.getMessage());
-		}
+		sendMessage(message);
 	}
 
 	/**
@@ -225,15 +396,79 @@ public class ClientHandler implements Runnable {
 	 * @param message the message to send
 	 */
 	private void sendMessage(JSONObject message) {
+		if (requestId != null)
+			message.put(Fields.REQUEST_ID, requestId);
 		try {
-			writer.write(message.toString());
-			writer.newLine();
-			writer.flush();
+			if (binaryProtocol) {
+				output.write(Protocol.encode(message));
+			} else {
+				output.write(message.toString().getBytes(StandardCharsets.UTF_8));
+				output.write('\n');
+			}
+			output.flush();
 		} catch (IOException e) {
 			System.err.println("communication error: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Sends a reply with the section content as last field: with the binary protocol the section file
+	 * is transferred as it is, otherwise the content is read and escaped in the JSON line
+	 *
+	 * @param reply   the other fields of the reply
+	 * @param section the section to send
+	 *
+	 * @return true if the reply has been sent, or cut and the connection closed
+	 *         false if a disk error occurred (and the error has been sent)
+	 */
+	private boolean sendSectionContent(JSONObject reply, Section section) {
+		if (!binaryProtocol) {
+			try {
+				reply.put(Fields.SEC_CONTENT, section.getContent());
+			} catch (IOException e) { // disk error
+				sendError(e.getMessage());
+				return false;
+			}
+			sendMessage(reply);
+			return true;
+		}
+
+		if (requestId != null)
+			reply.put(Fields.REQUEST_ID, requestId);
+		boolean[] headerSent = {false};
+		try {
+			section.transferContent(size -> {
+				ByteBuffer header = ByteBuffer.wrap(Protocol.encodeHeader(reply, Fields.SEC_CONTENT, size));
+				headerSent[0] = true;
+				return header;
+			}, rawOutput);
+			output.flush();
+		} catch (IOException | IllegalArgumentException e) {
+			if (headerSent[0]) { // the reply is incomplete, the client cannot read the next ones
+				System.err.println("communication error: " + e.getMessage());
+				closeConnection();
+				return true;
+			}
+			sendError(e.getMessage()); // disk error
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection without sending the buffered bytes, after an incomplete reply
+	 */
+	private void closeConnection() {
+		try {
+			if (clientConnection != null)
+				clientConnection.close(); // the handling loop logs out the user at the next read
+			else
+				output.close(); // the event loop discards the buffered bytes and closes the channel
+		} catch (IOException e) {
+			System.err.println("Cannot close client connection: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Sends an error message to the client
 	 *
@@ -243,13 +478,20 @@ public class ClientHandler implements Runnable {
 		JSONObject message = new JSONObject();
 		message.put(Fields.STATUS, Fields.STATUS_ERR)
 				.put(Fields.ERR_MSG, error_message);
-		try {
-			writer.write(message.toString());
-			writer.newLine();
-			writer.flush();
-		} catch (IOException e) {
-			System.err.println("communication error: " + e.getMessage());
-		}
+		sendMessage(message);
+	}
+
+	/**
+	 * Sends an end edit error message that leaves the section locked
+	 *
+	 * @param error_message the error message
+	 */
+	private void sendStillEditingError(String error_message) {
+		JSONObject message = new JSONObject();
+		message.put(Fields.STATUS, Fields.STATUS_ERR)
+				.put(Fields.ERR_MSG, error_message)
+				.put(Fields.STILL_EDITING, true);
+		sendMessage(message);
 	}
 
 	/**
@@ -288,7 +530,15 @@ public class ClientHandler implements Runnable {
 		// user logged
 		currentUser = user;
 		status = Status.LOGGED_IN;
-		sendAck();
+
+		// protocol negotiation, the ack is still in the request protocol
+		JSONObject reply = new JSONObject();
+		reply.put(Fields.STATUS, Fields.STATUS_OK);
+		boolean binaryRequested = Fields.PROTOCOL_BINARY.equals(request.opt(Fields.PROTOCOL));
+		if (binaryRequested)
+			reply.put(Fields.PROTOCOL, Fields.PROTOCOL_BINARY);
+		sendMessage(reply);
+		binaryProtocol |= binaryRequested;
 		out.println(currentUser.getUsername() + " connected");
 	}
 
@@ -336,15 +586,17 @@ public class ClientHandler implements Runnable {
 		// creating the new document
 		Document newDoc;
 		try {
-			newDoc = new Document(docName, currentUser, sections);
+			newDoc = Server.documentManager.create(docName, currentUser, sections);
 		} catch (IOException | IllegalArgumentException | PreExistentDocumentException e) {
 			sendError(e.getMessage());
 			return;
 		}
 
 		currentUser.addDocument(newDoc);
-		Server.documentManager.put(newDoc);
-		sendAck();
+		JSONObject reply = new JSONObject();
+		reply.put(Fields.STATUS, Fields.STATUS_OK)
+				.put(Fields.DOC_ID, newDoc.getId());
+		sendMessage(reply);
 	}
 
 	/**
@@ -354,26 +606,23 @@ public class ClientHandler implements Runnable {
 	 */
 	private void showDocument(JSONObject request) {
 		// parsing request
-		String docName = (String) request.get(Fields.DOC_NAME);
-		String creator = (String) request.get(Fields.DOC_CREATOR);
+		Document document = getDocument(request, false);
+		if (document == null) // error already sent
+			return;
 
-		Document document = getDocument(docName, creator);
-		if (document == null) {
-			sendError("Inexistent document: " + docName);
+		if (request.optBoolean(Fields.STREAM)) {
+			streamDocument(document);
 			return;
 		}
 
-		Section section;
-		int sectionNumber = 0;
 		StringBuilder content = new StringBuilder();
-		while ((section = document.getSection(sectionNumber)) != null) {
+		for (Section section : document.getUsedSections()) { // the others are empty
 			try {
 				content.append(section.getContent());
 			} catch (IOException e) { // disk error
 				sendError(e.getMessage());
 				return;
 			}
-			sectionNumber++;
 		}
 
 		JSONObject reply = new JSONObject();
@@ -382,6 +631,67 @@ public class ClientHandler implements Runnable {
 		sendMessage(reply);
 	}
 
+	/**
+	 * Sends a document a section at a time, followed by an end marker,
+	 * so that only a section is in memory and the client can show the first ones immediately
+	 *
+	 * @param document the document to send
+	 */
+	private void streamDocument(Document document) {
+		stream = new DocumentStream(document, requestId);
+		continueStream();
+	}
+
+	/**
+	 * Sends the next chunks of the document being streamed, until the client is backlogged
+	 * (the event loops call it again when the client has read the previous ones)
+	 *
+	 * @return true if the stream is not finished
+	 *         false otherwise
+	 */
+	boolean continueStream() {
+		if (stream == null)
+			return false;
+
+		Object handledRequestId = requestId;
+		requestId = stream.requestId;
+		try {
+			while (stream.sections.hasNext()) { // the unused sections are empty
+				if (backlogged.getAsBoolean())
+					return true;
+
+				Section section = stream.sections.next();
+				String content;
+				try {
+					content = section.getContent();
+				} catch (IOException e) { // disk error, terminates the stream
+					stream = null;
+					sendError(e.getMessage());
+					return false;
+				}
+				if (content.isEmpty()) // nothing to show
+					continue;
+
+				JSONObject chunk = new JSONObject();
+				chunk.put(Fields.STATUS, Fields.STATUS_OK)
+						.put(Fields.DOC_SECTION, section.getIndex())
+						.put(Fields.SEC_CONTENT, content)
+						.put(Fields.MORE, true);
+				sendMessage(chunk);
+			}
+
+			JSONObject end = new JSONObject();
+			end.put(Fields.STATUS, Fields.STATUS_OK)
+					.put(Fields.SECTIONS, stream.document.getNumberOfSections())
+					.put(Fields.MORE, false);
+			stream = null;
+			sendMessage(end);
+			return false;
+		} finally {
+			requestId = handledRequestId;
+		}
+	}
+
 	/**
 	 * Implements the show section operation
 	 *
@@ -389,15 +699,11 @@ public class ClientHandler implements Runnable {
 	 */
 	private void showSection(JSONObject request) {
 		// parsing request
-		String docName    = (String)  request.get(Fields.DOC_NAME);
-		String creator    = (String)  request.get(Fields.DOC_CREATOR);
 		int sectionNumber = (Integer) request.get(Fields.DOC_SECTION);
 
-		Document document = getDocument(docName, creator);
-		if (document == null) {
-			sendError("Inexistent document: " + docName);
+		Document document = getDocument(request, false);
+		if (document == null) // error already sent
 			return;
-		}
 
 		Section section = document.getSection(sectionNumber);
 		if (section == null) {
@@ -405,18 +711,9 @@ public class ClientHandler implements Runnable {
 			return;
 		}
 
-		String content;
-		try {
-			content = section.getContent();
-		} catch (IOException e) { // disk error
-			sendError(e.getMessage());
-			return;
-		}
-
 		JSONObject reply = new JSONObject();
-		reply.put(Fields.STATUS, Fields.STATUS_OK)
-				.put(Fields.SEC_CONTENT, content);
-		sendMessage(reply);
+		reply.put(Fields.STATUS, Fields.STATUS_OK);
+		sendSectionContent(reply, section);
 	}
 
 	/**
@@ -426,15 +723,11 @@ public class ClientHandler implements Runnable {
 	 */
 	private void editSection(JSONObject request) {
 		// parsing request
-		String docName    = (String)  request.get(Fields.DOC_NAME);
-		String creator    = (String)  request.get(Fields.DOC_CREATOR);
 		int sectionNumber = (Integer) request.get(Fields.DOC_SECTION);
 
-		Document document = getDocument(docName, creator);
-		if (document == null) {
-			sendError("Inexistent document: " + docName);
+		Document document = getDocument(request, false);
+		if (document == null) // error already sent
 			return;
-		}
 
 		Section section = document.getSection(sectionNumber);
 		if (section == null) {
@@ -444,15 +737,6 @@ public class ClientHandler implements Runnable {
 
 		// check if section is unlocked
 		if (section.startEdit(currentUser)) {
-			// read section content
-			String content;
-			try {
-				content = section.getContent();
-			} catch (IOException e) { // disk error
-				sendError(e.getMessage());
-				return;
-			}
-
 			// lock user
 			status = Status.EDITING;
 			currentUser.setEditingSection(section);
@@ -460,12 +744,22 @@ public class ClientHandler implements Runnable {
 			// send section content
 			JSONObject reply = new JSONObject();
 			reply.put(Fields.STATUS, Fields.STATUS_OK)
-					.put(Fields.SEC_CONTENT, content)
+					.put(Fields.VERSION, section.getVersion())
+					.put(Fields.LEASE_MILLIS, Server.EDIT_LEASE_MILLIS)
 					.put(Fields.CHAT_ADDR,
 							document.getChatAddress() == null ? null : document.getChatAddress().getHostAddress());
-			sendMessage(reply);
+			if (!sendSectionContent(reply, section)) { // disk error, unlock section and user
+				status = Status.LOGGED_IN;
+				currentUser.setEditingSection(null);
+				try {
+					section.endEdit(currentUser, null);
+				} catch (IOException e) {
+					System.err.println("Disk error: " + e.getMessage());
+				}
+			}
 		} else {
-			sendError(section.getEditingUser().getUsername() + " is editing this section");
+			User editingUser = section.getEditingUser(); // null if unlocked in the meantime
+			sendError((editingUser == null ? "Someone" : editingUser.getUsername()) + " is editing this section");
 		}
 	}
 
@@ -477,18 +771,45 @@ public class ClientHandler implements Runnable {
 	private void endEdit(JSONObject request) {
 		Section section = currentUser.getEditingSection();
 
-		// new section content
+		// new section content, or changes to the current one
 		String content = request.has(Fields.SEC_CONTENT) ? (String) request.get(Fields.SEC_CONTENT) : null;
+		Patch patch = null;
+		long baseVersion = 0;
+		try {
+			if (request.has(Fields.PATCH)) {
+				patch = Patch.fromJSON(request.getInt(Fields.BASE_LENGTH), request.getJSONArray(Fields.PATCH));
+				baseVersion = request.getLong(Fields.VERSION);
+			}
+		} catch (IllegalArgumentException | JSONException e) {
+			sendStillEditingError("Invalid patch: " + e.getMessage());
+			return;
+		}
 
 		// unlock section
+		String error = null;
 		try {
-			section.endEdit(currentUser, content);
+			boolean unlocked = (patch != null) ?
+					section.endEdit(currentUser, baseVersion, patch) : section.endEdit(currentUser, content);
+			if (!unlocked && patch != null && section.isEditedBy(currentUser)) {
+				sendStillEditingError("Section changed, send the full content");
+				return;
+			}
+			if (!unlocked) // the lease expired
+				error = "Edit lease expired, changes not saved";
+		} catch (IllegalArgumentException e) {
+			sendStillEditingError("Invalid patch: " + e.getMessage());
+			return;
 		} catch (IOException e) {
-			sendError(e.getMessage());
+			error = e.getMessage();
 		}
 		status = Status.LOGGED_IN;
 		currentUser.setEditingSection(null); // unlock user
-		sendAck();
+
+		// exactly one reply, the client may have pipelined other requests
+		if (error != null)
+			sendError(error);
+		else
+			sendAck();
 	}
 
 	/**
@@ -499,23 +820,12 @@ public class ClientHandler implements Runnable {
 	private void invite(JSONObject request) {
 		// parsing request
 		String username = (String) request.get(Fields.USERNAME);
-		String creator  = (String) request.get(Fields.DOC_CREATOR);
-		String docName  = (String) request.get(Fields.DOC_NAME);
 
 		// get the document to share
-		Document document;
-		try {
-			document = Server.documentManager.getAsCreator(
-					currentUser, Server.documentManager.makeKey(creator, docName));
-		} catch (UserNotAllowedException e) {
-			sendError(e.getMessage());
-			System.err.println(currentUser + " not allowed to share " + docName);
-			return;
-		} catch (InexistentDocumentException e) {
-			sendError(e.getMessage());
-			System.err.println("Inexistent document: " + docName);
+		Document document = getDocument(request, true);
+		if (document == null) // error already sent
 			return;
-		}
+		String docName = document.getName();
 
 		// get the user to invite
 		User user;
@@ -538,63 +848,94 @@ public class ClientHandler implements Runnable {
 		}
 
 		// share succeeded
-		synchronized (user.sharedDocuments) {
-			if (!user.sharedDocuments.contains(document))
-				user.sharedDocuments.add(document);
-		}
+		user.addSharedDocument(document);
+		currentUser.getDocuments().update(document); // the first share changes the shared flag
 
 		// creating notification message
 		JSONObject notification = new JSONObject();
-		notification.put(Fields.DOC_NAME, document.getName())
+		notification.put(Fields.DOC_ID, document.getId())
+				.put(Fields.DOC_NAME, document.getName())
 				.put(Fields.DOC_CREATOR, document.getCreator().getUsername())
 				.put(Fields.SECTIONS, document.getNumberOfSections())
 				.put(Fields.IS_SHARED, document.isShared());
 
 		// because RMI calls are not asynchronous
-		new Thread(() -> {
+		VirtualThreads.start(() -> {
 			try {
 				user.sendNotification(notification.toString());
 			} catch (RemoteException e) {
 				System.err.println("Cannot send notification to the client: " + e.getMessage());
 			}
-		}).start();
+		});
 
 		sendAck();
 	}
 
 	/**
 	 * Implements the list operation
+	 *
+	 * @param request the client request
 	 */
-	private void list() {
-		JSONObject reply = new JSONObject();
-		JSONObject document;
-		List<Document> myDocuments = currentUser.getMyDocuments();
+	private void list(JSONObject request) {
+		DocumentListing listing = currentUser.getDocuments();
+		long since = request.optLong(Fields.LIST_VERSION);
+		int pageSize = request.optInt(Fields.PAGE_SIZE);
+		String prefix = request.optString(Fields.NAME_PREFIX);
+
+		// parsing the filter and the cursor
+		Boolean owned;
+		switch (request.optString(Fields.LIST_FILTER)) {
+			case "":                   owned = null;  break;
+			case Fields.FILTER_OWNED:  owned = true;  break;
+			case Fields.FILTER_SHARED: owned = false; break;
+			default:
+				sendError("Unknown filter");
+				return;
+		}
+		int from = 0;
+		if (request.has(Fields.CURSOR)) {
+			try {
+				from = Integer.parseInt(request.optString(Fields.CURSOR), Character.MAX_RADIX);
+			} catch (NumberFormatException e) {
+				from = -1;
+			}
+			if (from < 0) {
+				sendError("Invalid cursor");
+				return;
+			}
+		}
 
-		// creating documents array
+		JSONObject reply = new JSONObject();
 		reply.put(Fields.STATUS, Fields.STATUS_OK);
-		JSONArray docArray = new JSONArray();
-		for (Document myDoc : myDocuments) {
-			document = new JSONObject();
-			document.put(Fields.DOC_NAME, myDoc.getName())
-					.put(Fields.DOC_CREATOR, myDoc.getCreator().getUsername())
-					.put(Fields.SECTIONS, myDoc.getNumberOfSections())
-					.put(Fields.IS_SHARED, myDoc.isShared());
-			docArray.put(document);
-		}
-		synchronized (currentUser.sharedDocuments) {
-			for (Document sharedDoc : currentUser.sharedDocuments) {
-				document = new JSONObject();
-				document.put(Fields.DOC_NAME, sharedDoc.getName())
-						.put(Fields.DOC_CREATOR, sharedDoc.getCreator().getUsername())
-						.put(Fields.SECTIONS, sharedDoc.getNumberOfSections())
-						.put(Fields.IS_SHARED, true);
-				docArray.put(document);
+		synchronized (listing) { // the version must match the documents
+			long version = listing.getVersion();
+			if (since > 0 && since <= version) { // the client has an older listing
+				reply.put(Fields.DOCS, listing.getChangedSince(since, owned, prefix))
+						.put(Fields.LIST_DELTA, true);
+			} else if (pageSize > 0 || owned != null || !prefix.isEmpty() || from > 0) {
+				int size = (pageSize > 0) ? Math.min(pageSize, DocumentListing.MAX_PAGE_SIZE) : DocumentListing.MAX_PAGE_SIZE;
+				DocumentListing.Page page = listing.getPage(from, size, owned, prefix);
+				reply.put(Fields.DOCS, page.documents);
+				if (page.next != -1) // the cursor is the position of the next page
+					reply.put(Fields.CURSOR, Integer.toString(page.next, Character.MAX_RADIX));
+			} else { // the whole listing
+				reply.put(Fields.DOCS, listing.get());
 			}
+			reply.put(Fields.LIST_VERSION, version);
 		}
-		reply.put(Fields.DOCS, docArray);
 		sendMessage(reply);
 	}
 
+	/**
+	 * Implements the renewal of the section edit lock
+	 */
+	private void renewLease() {
+		if (currentUser.getEditingSection().renewLease(currentUser))
+			sendAck();
+		else
+			sendError("Edit lease expired");
+	}
+
 	/**
 	 * Implements the send of a chat message
 	 *
@@ -612,27 +953,38 @@ public class ClientHandler implements Runnable {
 	}
 
 	/**
-	 * Gets a document for editing or showing it, sending error messages if the document doesn't exists or
-	 * if the current user isn't allowed to get it
+	 * Gets the document of a request, by DOC_ID or by DOC_CREATOR and DOC_NAME, sending error messages
+	 * if the document doesn't exists or if the current user isn't allowed to get it
 	 *
-	 * @param docName the document name
-	 * @param creator the document creator
+	 * @param request   the client request
+	 * @param asCreator true to get the document for sharing it
+	 *                  false to get it for editing or showing it
 	 *
 	 * @return the document, if the current user is allowed to get the document
 	 *         null otherwise
 	 */
-	private Document getDocument(String docName, String creator) {
+	private Document getDocument(JSONObject request, boolean asCreator) {
+		boolean byId = request.has(Fields.DOC_ID);
+		int docId = byId ? request.getInt(Fields.DOC_ID) : 0;
+		String docName = byId ? null : (String) request.get(Fields.DOC_NAME);
+		String creator = byId ? null : (String) request.get(Fields.DOC_CREATOR);
+
 		Document document;
 		try {
-			document = Server.documentManager.getAsCollaborator(
-					currentUser, Server.documentManager.makeKey(creator, docName));
+			if (asCreator)
+				document = byId ? Server.documentManager.getAsCreator(currentUser, docId) :
+						Server.documentManager.getAsCreator(currentUser, creator, docName);
+			else
+				document = byId ? Server.documentManager.getAsCollaborator(currentUser, docId) :
+						Server.documentManager.getAsCollaborator(currentUser, creator, docName);
 		} catch (UserNotAllowedException e) {
 			sendError(e.getMessage());
-			System.err.println(currentUser + " not allowed to get " + docName);
+			System.err.println(currentUser + " not allowed to " + (asCreator ? "share " : "get ") +
+					(byId ? "document " + docId : docName));
 			return null;
 		} catch (InexistentDocumentException e) {
 			sendError(e.getMessage());
-			System.err.println("Inexistent document: " + docName);
+			System.err.println("Inexistent document: " + (byId ? docId : docName));
 			return null;
 		}
 		return document;
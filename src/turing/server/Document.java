@@ -1,35 +1,40 @@
 package turing.server;
 
 import turing.server.exceptions.PreExistentDocumentException;
+import turing.server.storage.DocumentStore;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.net.StandardSocketOptions;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a document inside the server
  */
 public class Document {
+	private int id;
 	private String name;
 	private User creator;
-	private Section[] sections;
-	private List<User> allowedUsers = new LinkedList<>();
-	private InetAddress chatAddress = null;
-	private int editingUsers = 0;
+	private int numberOfSections;
+	private DocumentStore store; // section contents
 
-	private InetSocketAddress groupAddress;
-	private DatagramChannel channel;
+	/**
+	 * Key: section number, only for the sections used at least once (the others are empty)
+	 */
+	private final ConcurrentSkipListMap<Integer, Section> sections = new ConcurrentSkipListMap<>();
+	private final UserBitmap allowedUsers = new UserBitmap(); // users the document is shared with
+	private volatile InetAddress chatAddress = null;
+	private int editingUsers = 0; // of all the sections
+	private final ReentrantLock chatLock = new ReentrantLock(); // protects editingUsers and the chat opening
+
+	private volatile InetSocketAddress groupAddress; // chat address and port, null if no chat
 
 	/**
 	 * Creates a new document
 	 *
+	 * @param id       the document ID
 	 * @param name     the document name
 	 * @param creator  the document creator
 	 * @param sections the number of sections
@@ -38,35 +43,25 @@ public class Document {
 	 * @throws IllegalArgumentException     if sections is &lt; 1 or &gt; Server.MAX_SECTIONS
 	 * @throws PreExistentDocumentException if the document already exists
 	 */
-	public Document(String name, User creator, int sections)
+	public Document(int id, String name, User creator, int sections)
 			throws IOException, IllegalArgumentException, PreExistentDocumentException {
 		if (sections < 1 || sections > Server.MAX_SECTIONS)
 			throw new IllegalArgumentException("Invalid number of sections");
 
+		this.id = id;
 		this.name = name;
 		this.creator = creator;
-		this.sections = new Section[sections];
-
-		// creating directory
-		String creatorUsername = creator.getUsername();
-		String dirPath = Server.DOCS_ROOT + File.separator + creatorUsername + File.separator + name;
-		File file = new File(dirPath);
-		if (file.exists())
-			throw new PreExistentDocumentException(dirPath + " already created");
-		if (!file.mkdirs())
-			throw new IOException("mkdirs " + dirPath + " failed");
-
-		// creating sections
-		String sectionPath;
-		for (int i = 1; i <= sections; i++) {
-			sectionPath = dirPath + File.separator + i;
-			this.sections[i - 1] = new Section(this, sectionPath);
-			file = new File(sectionPath);
-			if (!file.createNewFile())
-				throw new IOException("createNewFile " + sectionPath + " failed");
-		}
+		this.numberOfSections = sections;
+		this.store = Server.storage.createDocument(creator.getUsername(), name, sections);
 	}
 
+	/**
+	 * Returns the document ID
+	 *
+	 * @return the document ID
+	 */
+	public int getId() { return id; }
+
 	/**
 	 * Returns the document name
 	 *
@@ -81,12 +76,19 @@ public class Document {
 	 */
 	public User getCreator() { return creator; }
 
+	/**
+	 * Returns the document storage
+	 *
+	 * @return the document storage
+	 */
+	DocumentStore getStore() { return store; }
+
 	/**
 	 * Returns the number of sections
 	 *
 	 * @return the number of sections
 	 */
-	public int getNumberOfSections() { return sections.length; }
+	public int getNumberOfSections() { return numberOfSections; }
 
 	/**
 	 * Returns the chat address
@@ -105,22 +107,30 @@ public class Document {
 
 	/**
 	 * Adds an editing user and eventually starts the chat
-	 * No need of synchronization because the method call is already synchronized
 	 */
 	public void addEditingUser() {
-		editingUsers++;
-		if (chatAddress == null) // first editing user joined
-			openChat(Server.addressManager.createAddress());
+		chatLock.lock(); // sections are locked independently, the lease wheel releases them too
+		try {
+			editingUsers++;
+			if (chatAddress == null) // first editing user joined
+				openChat(Server.addressManager.createAddress());
+		} finally {
+			chatLock.unlock();
+		}
 	}
 
 	/**
 	 * Removes an editing user and eventually closes the chat
-	 * No need of synchronization because the method call is already synchronized
 	 */
 	public void removeEditingUser() {
-		editingUsers--;
-		if (editingUsers == 0) { // last editing user left
-			closeChat();
+		chatLock.lock();
+		try {
+			editingUsers--;
+			if (editingUsers == 0) { // last editing user left
+				closeChat();
+			}
+		} finally {
+			chatLock.unlock();
 		}
 	}
 
@@ -133,11 +143,20 @@ public class Document {
 	 *         null otherwise
 	 */
 	public Section getSection(int index) {
-		if (index >= 0 && index < sections.length)
-			return sections[index];
+		if (index >= 0 && index < numberOfSections)
+			return sections.computeIfAbsent(index, i -> new Section(this, i)); // created at the first use
 		return null;
 	}
 
+	/**
+	 * Returns the sections used at least once, the others being empty
+	 *
+	 * @return the used sections, in order
+	 */
+	public Collection<Section> getUsedSections() {
+		return sections.values();
+	}
+
 	/**
 	 * Checks if the user is allowed to edit the document
 	 *
@@ -159,11 +178,7 @@ public class Document {
 	 * 	       false otherwise
 	 */
 	public boolean shareWith(User user) {
-		if (allowedUsers.contains(user)) // if already shared with user
-			return false;
-
-		allowedUsers.add(user);
-		return true;
+		return allowedUsers.add(user); // atomic, false if already shared with user
 	}
 
 	/**
@@ -172,51 +187,31 @@ public class Document {
 	 * @param message  the message to send
 	 * @param username the sender username
 	 *
-	 * @return true if the message have been sent
+	 * @return true if the message have been queued for sending
 	 *         false otherwise
 	 */
 	public boolean sendChatMessage(String message, String username) {
-		String toSend = username + ": " + message;
-		if (toSend.length() > Server.MTU)
-			toSend = toSend.substring(0, Server.MTU);
-		ByteBuffer buffer = ByteBuffer.allocate(toSend.length());
-		buffer.put(toSend.getBytes());
-		buffer.flip();
-		try {
-			channel.send(buffer, groupAddress);
-		} catch (IOException e) {
+		InetSocketAddress group = groupAddress;
+		if (group == null || Server.chatSender == null) // chat closed or unavailable
 			return false;
-		}
-		return true;
+		return Server.chatSender.send(group, username, message); // batched and truncated by the sender
 	}
 
 	/**
-	 * Initializes the chat channel
+	 * Initializes the chat, the messages are sent by the shared chat sender
 	 *
 	 * @param chatAddress the address of the chat
 	 */
 	private void openChat(InetAddress chatAddress) {
 		this.chatAddress = chatAddress;
 		groupAddress = new InetSocketAddress(chatAddress, Server.CHAT_PORT);
-		try {
-			NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName("localhost"));
-			channel = DatagramChannel.open();
-			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
-			channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
-		} catch (IOException e) {
-			System.err.println("Cannot create chat channel: " + e.getMessage()); // chat unavailable
-		}
 	}
 
 	/**
-	 * Closes the chat channel
+	 * Closes the chat, freeing its address
 	 */
 	private void closeChat() {
-		try {
-			channel.close();
-		} catch (IOException e) {
-			System.err.println("Cannot close chat channel: " + e.getMessage());
-		}
+		groupAddress = null;
 		Server.addressManager.freeAddress(chatAddress);
 		chatAddress = null;
 	}
@@ -0,0 +1,216 @@
+package turing.server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import turing.Fields;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Implements the document list of a user, kept ready for the list replies
+ *
+ * Every change takes a new listing version, so that a client can ask only the documents
+ * changed after the version it has already received.
+ */
+public class DocumentListing {
+	public static final int MAX_PAGE_SIZE = 1000; // max documents in a page
+
+	private final List<Entry> entries = new ArrayList<>(); // in insertion order
+
+	/**
+	 * Key: document ID
+	 */
+	private final Map<Integer, Entry> entriesById = new HashMap<>();
+
+	/**
+	 * Key: listing version of the last change of the entry
+	 */
+	private final TreeMap<Long, Entry> entriesByVersion = new TreeMap<>();
+
+	private long version = 0;        // version of the last change
+	private JSONArray cached = null; // whole listing, null if changed since built
+
+	/**
+	 * A listed document
+	 */
+	private static class Entry {
+		final Document document;
+		final boolean owned; // false if shared with the user
+		long version;        // listing version of the last change
+		JSONObject json;     // listing object
+
+		/**
+		 * Creates a new listing entry
+		 *
+		 * @param document the listed document
+		 * @param owned    true if the user created the document
+		 */
+		Entry(Document document, boolean owned) {
+			this.document = document;
+			this.owned = owned;
+		}
+
+		/**
+		 * Returns the shared flag shown to the user
+		 *
+		 * @return true if the document is shared
+		 */
+		boolean isShared() {
+			return !owned || document.isShared();
+		}
+
+		/**
+		 * Checks if the entry passes the listing filters
+		 *
+		 * @param owned  the required owned flag, null for any
+		 * @param prefix the required name prefix
+		 *
+		 * @return true if the entry passes the filters
+		 *         false otherwise
+		 */
+		boolean matches(Boolean owned, String prefix) {
+			return (owned == null || owned == this.owned) && document.getName().startsWith(prefix);
+		}
+	}
+
+	/**
+	 * A page of the listing
+	 */
+	public static class Page {
+		public final JSONArray documents; // listing objects
+		public final int next;            // position of the next page, -1 if this is the last one
+
+		/**
+		 * Creates a new page
+		 *
+		 * @param documents the listing objects
+		 * @param next      the position of the next page, -1 if none
+		 */
+		Page(JSONArray documents, int next) {
+			this.documents = documents;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Creates a new empty document listing
+	 */
+	public DocumentListing() {
+		super();
+	}
+
+	/**
+	 * Adds a document, if not already listed
+	 *
+	 * @param document the document to add
+	 * @param owned    true if the user created the document, false if it has been shared with the user
+	 */
+	public synchronized void add(Document document, boolean owned) {
+		if (entriesById.containsKey(document.getId()))
+			return;
+
+		Entry entry = new Entry(document, owned);
+		entries.add(entry);
+		entriesById.put(document.getId(), entry);
+		changed(entry);
+	}
+
+	/**
+	 * Updates a document whose shared flag may have changed
+	 *
+	 * @param document the document to update
+	 */
+	public synchronized void update(Document document) {
+		Entry entry = entriesById.get(document.getId());
+		if (entry == null || entry.isShared() == entry.json.getBoolean(Fields.IS_SHARED)) // nothing changed
+			return;
+
+		entriesByVersion.remove(entry.version);
+		changed(entry);
+	}
+
+	/**
+	 * Returns the version of the last change
+	 *
+	 * @return the listing version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the whole listing
+	 *
+	 * @return the array of the listing objects, not to be modified
+	 */
+	public synchronized JSONArray get() {
+		if (cached == null) {
+			cached = new JSONArray();
+			for (Entry entry : entries)
+				cached.put(entry.json);
+		}
+		return cached;
+	}
+
+	/**
+	 * Returns a page of the listing, in insertion order
+	 *
+	 * @param from   the position of the page, 0 for the first one
+	 * @param size   the max number of documents, between 1 and MAX_PAGE_SIZE
+	 * @param owned  true for the created documents only, false for the shared ones only, null for both
+	 * @param prefix the name prefix of the documents, empty for every name
+	 *
+	 * @return the page
+	 */
+	public synchronized Page getPage(int from, int size, Boolean owned, String prefix) {
+		JSONArray page = new JSONArray();
+		int position = Math.max(from, 0);
+		for (; position < entries.size() && page.length() < size; position++) {
+			Entry entry = entries.get(position);
+			if (entry.matches(owned, prefix))
+				page.put(entry.json);
+		}
+		return new Page(page, position < entries.size() ? position : -1);
+	}
+
+	/**
+	 * Returns the documents changed after a version
+	 *
+	 * @param since  the listing version already received
+	 * @param owned  true for the created documents only, false for the shared ones only, null for both
+	 * @param prefix the name prefix of the documents, empty for every name
+	 *
+	 * @return the array of the changed listing objects, in change order
+	 */
+	public synchronized JSONArray getChangedSince(long since, Boolean owned, String prefix) {
+		JSONArray changes = new JSONArray();
+		for (Entry entry : entriesByVersion.tailMap(since, false).values()) {
+			if (entry.matches(owned, prefix))
+				changes.put(entry.json);
+		}
+		return changes;
+	}
+
+	/**
+	 * Rebuilds the listing object of an entry and gives it a new version
+	 * NOTE: the caller must hold the monitor
+	 *
+	 * @param entry the changed entry
+	 */
+	private void changed(Entry entry) {
+		Document document = entry.document;
+		entry.json = new JSONObject()
+				.put(Fields.DOC_ID, document.getId())
+				.put(Fields.DOC_NAME, document.getName())
+				.put(Fields.DOC_CREATOR, document.getCreator().getUsername())
+				.put(Fields.SECTIONS, document.getNumberOfSections())
+				.put(Fields.IS_SHARED, entry.isShared());
+		entry.version = ++version;
+		entriesByVersion.put(entry.version, entry);
+		cached = null;
+	}
+}
@@ -1,22 +1,44 @@
 package turing.server;
 
 import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
 import turing.server.exceptions.UserNotAllowedException;
 
-import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements a concurrent document manager
  */
 public class DocumentManager {
+	private static final int INITIAL_CAPACITY = 1024; // initial size of the ID index
+
+	/**
+	 * Index: document ID, grown by copy
+	 *
+	 * NOTE: the array reference is replaced holding the lock, the elements are read without it
+	 */
+	private volatile AtomicReferenceArray<Document> documents = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	private final ReentrantLock documentsLock = new ReentrantLock(); // protects the writes in documents
+
 	/**
-	 * Key: string "username" + "document name"
+	 * Key: creator username, then document name
 	 *
-	 * NOTE: no need of ConcurrentHashMap, locks are in the sections
+	 * NOTE: looked up with the request strings, without building a composite key
 	 */
-	private Map<String, Document> documents = new HashMap<>();
+	private final Map<String, Map<String, Document>> documentsByCreator = new ConcurrentHashMap<>();
+
+	/**
+	 * Keys ("creator/name") of the documents whose storage is being created
+	 */
+	private final Set<String> creating = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger nextId = new AtomicInteger(1); // 0 is never a valid ID
 
 	/**
 	 * Creates a new document manager
@@ -26,94 +48,192 @@ public class DocumentManager {
 	}
 
 	/**
-	 * Adds a new document in the collection
+	 * Creates a new document and adds it in the collection, atomically
+	 *
+	 * @param name     the document name
+	 * @param creator  the document creator
+	 * @param sections the number of sections
+	 *
+	 * @return the created document
+	 *
+	 * @throws IOException                  if a disk error occurs
+	 * @throws IllegalArgumentException     if sections is &lt; 1 or &gt; Server.MAX_SECTIONS
+	 * @throws PreExistentDocumentException if the document already exists
+	 */
+	public Document create(String name, User creator, int sections)
+			throws IOException, IllegalArgumentException, PreExistentDocumentException {
+		Map<String, Document> creatorDocuments =
+				documentsByCreator.computeIfAbsent(creator.getUsername(), username -> new ConcurrentHashMap<>());
+
+		// the name is reserved while the storage is created, outside the map bins (no disk I/O under a monitor)
+		String key = creator.getUsername() + "/" + name;
+		if (creatorDocuments.containsKey(name) || !creating.add(key))
+			throw new PreExistentDocumentException(key + " already created");
+		Document document;
+		try {
+			if (creatorDocuments.containsKey(name)) // created before the reservation
+				throw new PreExistentDocumentException(key + " already created");
+			document = new Document(nextId.getAndIncrement(), name, creator, sections);
+			index(document); // found by ID before it is found by name
+			creatorDocuments.put(name, document);
+		} finally {
+			creating.remove(key);
+		}
+		return document;
+	}
+
+	/**
+	 * Stores a document in the ID index, growing it if needed
 	 *
-	 * @param document the document to add
+	 * @param document the new document
 	 */
-	public void put(Document document) {
-		documents.putIfAbsent(makeKey(document), document);
+	private void index(Document document) {
+		documentsLock.lock();
+		try {
+			AtomicReferenceArray<Document> current = documents;
+			if (document.getId() >= current.length()) { // growing the index
+				AtomicReferenceArray<Document> bigger =
+						new AtomicReferenceArray<>(Math.max(current.length() * 2, document.getId() + 1));
+				for (int i = 0; i < current.length(); i++)
+					bigger.set(i, current.get(i));
+				documents = current = bigger;
+			}
+			current.set(document.getId(), document);
+		} finally {
+			documentsLock.unlock();
+		}
 	}
 
 	/**
 	 * Gets a document for editing
 	 *
-	 * @param user    the user that asks for the document
-	 * @param docKey  the document map key
+	 * @param user         the user that asks for the document
+	 * @param creator      the document creator username
+	 * @param documentName the document name
 	 *
 	 * @return the document searched for
 	 *
 	 * @throws UserNotAllowedException     if the user is not allowed to get the document
 	 * @throws InexistentDocumentException if the document doesn't exist
 	 */
-	public Document getAsCollaborator(User user, String docKey)
+	public Document getAsCollaborator(User user, String creator, String documentName)
 			throws UserNotAllowedException, InexistentDocumentException {
-		Document document = get(docKey);
+		return checkCollaborator(user, get(creator, documentName));
+	}
 
-		// check permissions
-		if (document.isEditableBy(user))
-			return document;
-		else
-			throw new UserNotAllowedException("Permission denied");
+	/**
+	 * Gets a document for editing
+	 *
+	 * @param user the user that asks for the document
+	 * @param id   the document ID
+	 *
+	 * @return the document searched for
+	 *
+	 * @throws UserNotAllowedException     if the user is not allowed to get the document
+	 * @throws InexistentDocumentException if the document doesn't exist
+	 */
+	public Document getAsCollaborator(User user, int id) throws UserNotAllowedException, InexistentDocumentException {
+		return checkCollaborator(user, get(id));
 	}
 
 	/**
 	 * Gets a document for sharing
 	 *
-	 * @param user    the user that asks for the document
-	 * @param docKey  the document map kay
+	 * @param user         the user that asks for the document
+	 * @param creator      the document creator username
+	 * @param documentName the document name
 	 *
 	 * @return the document searched for
 	 *
 	 * @throws UserNotAllowedException     if the user is not the document creator
 	 * @throws InexistentDocumentException if the document doesn't exist
 	 */
-	public Document getAsCreator(User user, String docKey)
+	public Document getAsCreator(User user, String creator, String documentName)
 			throws UserNotAllowedException, InexistentDocumentException {
-		Document document = get(docKey);
+		return checkCreator(user, get(creator, documentName));
+	}
 
-		// check permissions
-		if (user == document.getCreator())
-			return document;
-		else
-			throw new UserNotAllowedException("You cannot share other users' documents");
+	/**
+	 * Gets a document for sharing
+	 *
+	 * @param user the user that asks for the document
+	 * @param id   the document ID
+	 *
+	 * @return the document searched for
+	 *
+	 * @throws UserNotAllowedException     if the user is not the document creator
+	 * @throws InexistentDocumentException if the document doesn't exist
+	 */
+	public Document getAsCreator(User user, int id) throws UserNotAllowedException, InexistentDocumentException {
+		return checkCreator(user, get(id));
+	}
+
+	/**
+	 * Gets a document by ID
+	 *
+	 * @param id the document ID
+	 *
+	 * @return the document searched for
+	 *
+	 * @throws InexistentDocumentException if the document doesn't exist
+	 */
+	public Document get(int id) throws InexistentDocumentException {
+		AtomicReferenceArray<Document> current = documents;
+		Document document = (id > 0 && id < current.length()) ? current.get(id) : null;
+		if (document == null)
+			throw new InexistentDocumentException("Inexistent document");
+		return document;
 	}
 
 	/**
 	 * Gets a document
 	 *
-	 * @param docKey the document map key
+	 * @param creator      the document creator username
+	 * @param documentName the document name
 	 *
 	 * @return the document searched for
 	 *
 	 * @throws InexistentDocumentException if the document doesn't exist
 	 */
-	private Document get(String docKey) throws InexistentDocumentException {
-		Document document = documents.get(docKey);
+	private Document get(String creator, String documentName) throws InexistentDocumentException {
+		Map<String, Document> creatorDocuments = documentsByCreator.get(creator);
+		Document document = (creatorDocuments == null) ? null : creatorDocuments.get(documentName);
 		if (document == null)
 			throw new InexistentDocumentException("Inexistent document");
 		return document;
 	}
 
 	/**
-	 * Creates the map key for a document
+	 * Checks if a user can edit a document
 	 *
+	 * @param user     the user that asks for the document
 	 * @param document the document
 	 *
-	 * @return the key string
+	 * @return the document
+	 *
+	 * @throws UserNotAllowedException if the user is not allowed to get the document
 	 */
-	public String makeKey(Document document) {
-		return document.getCreator().getUsername() + File.separator + document.getName();
+	private static Document checkCollaborator(User user, Document document) throws UserNotAllowedException {
+		if (document.isEditableBy(user))
+			return document;
+		else
+			throw new UserNotAllowedException("Permission denied");
 	}
 
 	/**
-	 * Creates the map key for a document
+	 * Checks if a user is the creator of a document
+	 *
+	 * @param user     the user that asks for the document
+	 * @param document the document
 	 *
-	 * @param creatorUsername the document creator username
-	 * @param documentName    the document name
+	 * @return the document
 	 *
-	 * @return the key string
+	 * @throws UserNotAllowedException if the user is not the document creator
 	 */
-	public String makeKey(String creatorUsername, String documentName) {
-		return creatorUsername + File.separator + documentName;
+	private static Document checkCreator(User user, Document document) throws UserNotAllowedException {
+		if (user == document.getCreator())
+			return document;
+		else
+			throw new UserNotAllowedException("You cannot share other users' documents");
 	}
 }
@@ -0,0 +1,430 @@
+package turing.server;
+
+import org.json.JSONObject;
+import turing.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.System.out;
+
+/**
+ * A thread that serves many client connections with a selector (non-blocking server mode)
+ *
+ * Requests are parsed and replies are written by the loop thread, but the requests that may wait for the disk
+ * are handled by a worker, so that a slow save doesn't stall the other connections. Meanwhile the connection
+ * reads no other request: the worker replies are handed back to the loop and sent in order.
+ */
+public class EventLoop implements Runnable {
+	private static final int BUFFER_SIZE    = 8192;      // initial size of the connection read buffer
+	private static final int STREAM_BACKLOG = 64 * 1024; // unsent reply bytes that pause a document stream
+
+	private final Selector selector;                                                   // multiplexed channels
+	private final Executor workers;                                                    // blocking requests handlers
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>(); // channels to register
+	private final Queue<ClientConnection> finishedTasks = new ConcurrentLinkedQueue<>(); // worker tasks completed
+	private volatile Thread loopThread = null;                                         // selector thread
+	private volatile boolean stop = false;                                             // loop stop flag
+
+	/**
+	 * Creates a new event loop
+	 *
+	 * @param workers the executor of the requests that may wait for the disk
+	 *
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public EventLoop(Executor workers) throws IOException {
+		this.selector = Selector.open();
+		this.workers = workers;
+	}
+
+	/**
+	 * Hands a new client connection to the event loop
+	 *
+	 * @param channel the accepted client channel
+	 */
+	public void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup(); // the selector thread will register the channel
+	}
+
+	/**
+	 * Terminates the event loop, closing all its connections
+	 */
+	public void shutdown() {
+		stop = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Selection loop
+	 */
+	@Override
+	public void run() {
+		loopThread = Thread.currentThread();
+		while (!stop) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("Selection error: " + e.getMessage());
+				break;
+			}
+
+			registerPendingChannels();
+
+			// connections whose worker task completed
+			ClientConnection finished;
+			while ((finished = finishedTasks.poll()) != null)
+				serve(finished, null);
+
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				serve((ClientConnection) key.attachment(), key);
+			}
+		}
+
+		// closing connections and selector
+		for (SelectionKey key : selector.keys())
+			((ClientConnection) key.attachment()).close();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Cannot close selector: " + e.getMessage());
+		}
+		out.println("Event loop " + Thread.currentThread().getName() + " terminated");
+	}
+
+	/**
+	 * Serves a connection, closing it on errors
+	 *
+	 * @param connection the connection to serve
+	 * @param key        the selected key, null if a worker task of the connection completed
+	 */
+	private void serve(ClientConnection connection, SelectionKey key) {
+		try {
+			if (key == null) {
+				connection.taskFinished();
+			} else {
+				if (key.isReadable())
+					connection.read();
+				if (key.isValid() && key.isWritable())
+					connection.writable();
+			}
+		} catch (IOException e) { // communication error with the client
+			System.err.println("Cannot communicate with the client: " + e.getMessage());
+			connection.close();
+		} catch (RuntimeException e) { // must not terminate the other connections
+			System.err.println("Cannot handle client request: " + e.getMessage());
+			connection.close();
+		}
+	}
+
+	/**
+	 * Registers the channels handed by the acceptor thread
+	 */
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new ClientConnection(key, channel));
+			} catch (IOException e) {
+				System.err.println("Cannot register client channel: " + e.getMessage());
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					System.err.println("Cannot close client channel: " + ex.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client connection served by the event loop, with its own buffers and handler
+	 *
+	 * NOTE: the handler is used by a thread at a time, the loop or the worker of the current task
+	 */
+	private class ClientConnection {
+		private final SelectionKey key;
+		private final SocketChannel channel;
+		private final ClientHandler handler;
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE); // bytes of the incomplete requests
+		private int scanned = 0;                                           // bytes already scanned for a newline
+		private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();   // replies not sent yet
+		private final AtomicInteger unsentBytes = new AtomicInteger();     // bytes of the replies not sent yet
+		private boolean closed = false;
+
+		// worker task state
+		private boolean busy = false;                                             // a worker is using the handler
+		private final Queue<ByteBuffer> workerReplies = new ConcurrentLinkedQueue<>(); // written by the worker
+		private volatile boolean closeRequested = false;                          // asked by the worker
+
+		/**
+		 * Creates a new client connection
+		 *
+		 * @param key     the channel selection key
+		 * @param channel the client channel
+		 */
+		ClientConnection(SelectionKey key, SocketChannel channel) {
+			this.key = key;
+			this.channel = channel;
+
+			// the handler replies are queued on the channel when flushed, and dropped when closed
+			this.handler = new ClientHandler(new ByteArrayOutputStream() {
+				@Override
+				public void flush() throws IOException {
+					ByteBuffer reply = ByteBuffer.wrap(toByteArray());
+					reset();
+					if (Thread.currentThread() == loopThread) {
+						enqueue(reply);
+					} else { // sent by the loop when the task completes
+						unsentBytes.addAndGet(reply.remaining());
+						workerReplies.add(reply);
+					}
+				}
+
+				@Override
+				public void close() {
+					reset();
+					if (Thread.currentThread() == loopThread)
+						ClientConnection.this.close();
+					else
+						closeRequested = true;
+				}
+			}, () -> unsentBytes.get() > STREAM_BACKLOG);
+		}
+
+		/**
+		 * Reads the available bytes and handles every complete request
+		 *
+		 * @throws IOException if a network error occurs
+		 */
+		void read() throws IOException {
+			if (!readBuffer.hasRemaining()) { // request bigger than the buffer
+				ByteBuffer biggerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				biggerBuffer.put(readBuffer);
+				readBuffer = biggerBuffer;
+			}
+
+			if (channel.read(readBuffer) == -1) { // client disconnected
+				close();
+				return;
+			}
+			handleRequests();
+		}
+
+		/**
+		 * Handles every complete request in the read buffer, stopping at a worker task or a document stream
+		 * (the next requests are handled when it ends, so that the replies keep their order)
+		 *
+		 * @throws IOException if a frame length is invalid
+		 */
+		private void handleRequests() throws IOException {
+			// requests are newline terminated or length prefixed, depending on the negotiated protocol
+			byte[] bytes = readBuffer.array();
+			int start = 0;
+			while (!closed && !busy && !handler.isStreaming()) {
+				int end = readBuffer.position();
+				JSONObject request = null;
+				if (handler.usesBinaryProtocol()) {
+					if (end - start < Integer.BYTES) // incomplete length
+						break;
+					int length = readBuffer.getInt(start);
+					if (length < 1 || length > Protocol.MAX_FRAME)
+						throw new IOException("Invalid frame length: " + length);
+					if (end - start - Integer.BYTES < length) // incomplete frame
+						break;
+
+					try {
+						request = Protocol.decode(ByteBuffer.wrap(bytes, start + Integer.BYTES, length));
+					} catch (IllegalArgumentException e) { // malformed frame content, the next frame can still be read
+						handler.rejectRequest(e.getMessage());
+					}
+					start += Integer.BYTES + length;
+				} else {
+					int newline = -1;
+					for (int i = Math.max(scanned, start); i < end && newline < 0; i++)
+						if (bytes[i] == '\n')
+							newline = i;
+					if (newline < 0) { // incomplete line
+						scanned = end;
+						break;
+					}
+
+					int lineEnd = (newline > start && bytes[newline - 1] == '\r') ? newline - 1 : newline;
+					String requestString = new String(bytes, start, lineEnd - start, StandardCharsets.UTF_8);
+					start = newline + 1;
+					request = handler.parseRequest(requestString);
+				}
+
+				if (request == null) // error already sent
+					continue;
+				if (ClientHandler.mayBlock(request)) {
+					JSONObject blockingRequest = request;
+					dispatch(() -> handler.handleRequest(blockingRequest));
+				} else {
+					handler.handleRequest(request);
+				}
+			}
+			if (closed)
+				return;
+
+			// discarding handled requests
+			readBuffer.flip();
+			readBuffer.position(start);
+			readBuffer.compact();
+			scanned = Math.max(scanned - start, 0);
+			updateInterest();
+		}
+
+		/**
+		 * Hands a task using the handler to a worker, the connection waits for it
+		 *
+		 * @param task the task to run
+		 */
+		private void dispatch(Runnable task) {
+			busy = true;
+			try {
+				workers.execute(() -> {
+					try {
+						task.run();
+					} catch (RuntimeException e) { // must not leave the connection waiting
+						System.err.println("Cannot handle client request: " + e.getMessage());
+						closeRequested = true;
+					}
+					finishedTasks.add(this);
+					selector.wakeup();
+				});
+			} catch (RejectedExecutionException e) { // shutting down
+				busy = false;
+				close();
+			}
+		}
+
+		/**
+		 * Sends the replies of the completed worker task and goes on with the next requests
+		 *
+		 * @throws IOException if a network error occurs
+		 */
+		void taskFinished() throws IOException {
+			busy = false;
+			if (closed) { // the user is logged out now that the handler is free
+				handler.disconnect();
+				return;
+			}
+			if (closeRequested) {
+				close();
+				return;
+			}
+
+			ByteBuffer reply;
+			while ((reply = workerReplies.poll()) != null) // already counted in the unsent bytes
+				writeQueue.add(reply);
+			write();
+			resume();
+		}
+
+		/**
+		 * Writes the queued replies, waiting for the channel to be writable if needed
+		 *
+		 * @throws IOException if a network error occurs
+		 */
+		void write() throws IOException {
+			while (!writeQueue.isEmpty()) {
+				ByteBuffer buffer = writeQueue.peek();
+				unsentBytes.addAndGet(-channel.write(buffer));
+				if (buffer.hasRemaining()) // socket buffer full
+					break;
+				writeQueue.poll();
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Writes the queued replies, then goes on with the document stream or the next requests
+		 *
+		 * @throws IOException if a network error occurs
+		 */
+		void writable() throws IOException {
+			write();
+			resume();
+		}
+
+		/**
+		 * Continues the document stream if the client has read enough, or handles the requests that waited
+		 *
+		 * @throws IOException if a frame length is invalid
+		 */
+		private void resume() throws IOException {
+			if (closed || busy)
+				return;
+			if (!handler.isStreaming())
+				handleRequests();
+			else if (unsentBytes.get() <= STREAM_BACKLOG)
+				dispatch(handler::continueStream); // reads the next sections
+			updateInterest();
+		}
+
+		/**
+		 * Waits for the channel to be writable while there are queued replies, and for new requests
+		 * unless a worker task or a document stream is pending
+		 */
+		private void updateInterest() {
+			if (closed)
+				return;
+			key.interestOps((busy || handler.isStreaming() ? 0 : SelectionKey.OP_READ) |
+					(writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		/**
+		 * Queues a reply and tries to send it
+		 *
+		 * @param buffer the reply bytes
+		 *
+		 * @throws IOException if a network error occurs
+		 */
+		private void enqueue(ByteBuffer buffer) throws IOException {
+			if (closed)
+				return;
+			unsentBytes.addAndGet(buffer.remaining());
+			writeQueue.add(buffer);
+			if (writeQueue.size() == 1) // nothing else pending
+				write();
+		}
+
+		/**
+		 * Logs out the user and closes the channel
+		 * (the user is logged out when the worker task completes, if any)
+		 */
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (!busy)
+				handler.disconnect();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Cannot close client channel: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -1,26 +1,103 @@
 package turing.server;
 
+import turing.Patch;
+
 import java.io.IOException;
-import java.nio.file.*;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
 
 /**
  * Represents a section inside the server
+ *
+ * The edit lock is a lease, taken and released with atomic operations on its owner and its deadline:
+ * a lease not renewed in time is cleared by the lease timing wheel, or taken over by the next editor.
  */
 public class Section {
+	// lease deadline states
+	private static final long EXPIRED = -1;             // released or expired, the owner cannot save
+	private static final long SAVING  = Long.MAX_VALUE; // the owner is saving, it doesn't expire
+
 	private final Document parent;
-	private final Path path;
-	private User editingUser = null; // that is currently editing
+	private final int index;                // section number in the document, from 0
+	private final AtomicReference<Lease> lease = new AtomicReference<>(); // edit lock, null if unlocked
+	private volatile long version = 0;      // number of saves, changed saving with the file lock
+
+	// explicit lock, because monitors would pin virtual threads on disk operations:
+	// readers of the section storage proceed in parallel, a save excludes them
+	private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+	/**
+	 * An edit lock held by a user until its deadline
+	 */
+	private final class Lease implements TimingWheel.Timeout {
+		final User user;
+		final AtomicLong deadline; // in milliseconds, or EXPIRED, or SAVING
+
+		/**
+		 * Creates a new lease
+		 *
+		 * @param user     the editing user
+		 * @param deadline the lease deadline in milliseconds
+		 */
+		Lease(User user, long deadline) {
+			this.user = user;
+			this.deadline = new AtomicLong(deadline);
+		}
+
+		@Override
+		public long expire(long now) {
+			while (true) {
+				long current = deadline.get();
+				if (current == EXPIRED) // already released
+					return 0;
+				if (current == SAVING) // checking again after the save
+					return now + Server.EDIT_LEASE_MILLIS;
+				if (current > now) // renewed
+					return current;
+				if (deadline.compareAndSet(current, EXPIRED)) {
+					release(this);
+					return 0;
+				}
+			}
+		}
+
+		/**
+		 * Takes the lease for saving, so that it cannot expire
+		 *
+		 * @return true if the lease was valid
+		 *         false if it expired
+		 */
+		boolean claim() {
+			long current;
+			do {
+				current = deadline.get();
+				if (current == EXPIRED || current == SAVING)
+					return false;
+			} while (!deadline.compareAndSet(current, SAVING));
+			return true;
+		}
+
+		/**
+		 * Gives back a claimed lease, renewed, to continue editing
+		 */
+		void unclaim() {
+			deadline.set(System.currentTimeMillis() + Server.EDIT_LEASE_MILLIS);
+		}
+	}
 
 	/**
 	 * Creates a new section
 	 *
 	 * @param parent the parent document
-	 * @param path   the file path
+	 * @param index  the section number in the document, from 0
 	 */
-	public Section(Document parent, String path) {
+	public Section(Document parent, int index) {
 		this.parent = parent;
-		this.path = Paths.get(path);
+		this.index = index;
 	}
 
 	/**
@@ -32,52 +109,202 @@ public class Section {
 		return parent;
 	}
 
+	/**
+	 * Returns the section number
+	 *
+	 * @return the section number in the document, from 0
+	 */
+	public int getIndex() {
+		return index;
+	}
+
 	/**
 	 * Returns the editing user
 	 *
-	 * @return the editing user
+	 * @return the editing user, null if the section is not locked
 	 */
 	public User getEditingUser() {
-		return editingUser;
+		Lease current = lease.get();
+		return (current == null) ? null : current.user;
 	}
 
 	/**
-	 * Locks the section for the editing
+	 * Checks if a user holds the edit lock
+	 *
+	 * @param user the user to check
+	 *
+	 * @return true if the user is editing the section and the lease didn't expire
+	 *         false otherwise
+	 */
+	public boolean isEditedBy(User user) {
+		Lease current = lease.get();
+		return current != null && current.user == user && current.deadline.get() != EXPIRED;
+	}
+
+	/**
+	 * Returns the section version, incremented at each save
+	 *
+	 * @return the section version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Locks the section for the editing, without blocking
 	 *
 	 * @param user the user that wants to edit the section
 	 *
 	 * @return true if the section has been locked for the user
 	 *         false otherwhise (section already reserved)
 	 */
-	public synchronized boolean startEdit(User user) {
-		if (editingUser == null) {
-			editingUser = user;
+	public boolean startEdit(User user) {
+		long now = System.currentTimeMillis();
+		Lease newLease = new Lease(user, now + Server.EDIT_LEASE_MILLIS);
+		Lease current = lease.get();
+		if (current == null) {
+			if (!lease.compareAndSet(null, newLease))
+				return false;
 			parent.addEditingUser();
-			return true;
-		} else {
-			return false;
+		} else { // taking over an expired lease, before the wheel clears it
+			long deadline = current.deadline.get();
+			if (deadline == EXPIRED || deadline > now || !current.deadline.compareAndSet(deadline, EXPIRED))
+				return false;
+			lease.set(newLease); // the document keeps its editing users count
 		}
+		Server.leaseWheel.schedule(newLease, now + Server.EDIT_LEASE_MILLIS);
+		return true;
+	}
+
+	/**
+	 * Renews the edit lock of a user
+	 *
+	 * @param user the editing user
+	 *
+	 * @return true if the lease has been renewed
+	 *         false if the user doesn't hold the lease anymore
+	 */
+	public boolean renewLease(User user) {
+		Lease current = lease.get();
+		if (current == null || current.user != user)
+			return false;
+
+		long deadline;
+		do {
+			deadline = current.deadline.get();
+			if (deadline == EXPIRED || deadline == SAVING)
+				return false;
+		} while (!current.deadline.compareAndSet(deadline, System.currentTimeMillis() + Server.EDIT_LEASE_MILLIS));
+		return true;
 	}
 
 	/**
 	 * Unlocks the section and saves the new content
 	 *
 	 * @param user    the user that wants to end the section editing
-	 * @param content the new section content
+	 * @param content the new section content, null to discard the changes
 	 *
-	 * @throws IOException if a disk error occurs
+	 * @return true if the section has been unlocked
+	 *         false if the user doesn't hold the lease anymore (nothing saved)
+	 *
+	 * @throws IOException if a disk error occurs (the section is unlocked anyway)
 	 */
-	public synchronized void endEdit(User user, String content) throws IOException {
-		if (editingUser != user)
-			return;
+	public boolean endEdit(User user, String content) throws IOException {
+		Lease current = claim(user);
+		if (current == null)
+			return false;
 
-		editingUser = null; // unlock section
-		parent.removeEditingUser();
+		try {
+			if (content != null) // save changes
+				save(content);
+		} finally {
+			release(current);
+		}
+		return true;
+	}
 
-		if (content != null) { // save changes
-			synchronized (path) { // because of getContent method
-				Files.writeString(path, content, StandardOpenOption.TRUNCATE_EXISTING);
-			}
+	/**
+	 * Unlocks the section and saves the content obtained patching the current one
+	 *
+	 * @param user        the user that wants to end the section editing
+	 * @param baseVersion the section version the patch refers to
+	 * @param patch       the changes
+	 *
+	 * @return true if the section has been saved and unlocked
+	 *         false otherwise (the user doesn't hold the lease, or changed since the base version)
+	 *
+	 * @throws IOException              if a disk error occurs (the section is unlocked anyway)
+	 * @throws IllegalArgumentException if the patch doesn't apply to the current content
+	 */
+	public boolean endEdit(User user, long baseVersion, Patch patch) throws IOException, IllegalArgumentException {
+		Lease current = claim(user);
+		if (current == null)
+			return false;
+
+		String content;
+		try {
+			content = (version == baseVersion) ? patch.apply(getContent()) : null;
+		} catch (IllegalArgumentException e) { // still editing
+			current.unclaim();
+			throw e;
+		} catch (IOException e) { // unlocking anyway, like a failed save
+			release(current);
+			throw e;
+		}
+		if (content == null) { // still editing
+			current.unclaim();
+			return false;
+		}
+
+		try {
+			save(content);
+		} finally {
+			release(current);
+		}
+		return true;
+	}
+
+	/**
+	 * Claims the lease of a user for saving
+	 *
+	 * @param user the editing user
+	 *
+	 * @return the claimed lease
+	 *         null if the user doesn't hold the lease
+	 */
+	private Lease claim(User user) {
+		Lease current = lease.get();
+		return (current != null && current.user == user && current.claim()) ? current : null;
+	}
+
+	/**
+	 * Unlocks the section
+	 * NOTE: the caller must have claimed or expired the lease
+	 *
+	 * @param released the lease to release
+	 */
+	private void release(Lease released) {
+		released.deadline.set(EXPIRED);
+		if (lease.compareAndSet(released, null))
+			parent.removeEditingUser();
+	}
+
+	/**
+	 * Saves the section content
+	 * NOTE: the caller must hold the lease
+	 *
+	 * @param content the new content
+	 *
+	 * @throws IOException if a disk error occurs
+	 */
+	private void save(String content) throws IOException {
+		fileLock.writeLock().lock(); // because of getContent method
+		try {
+			parent.getStore().writeSection(index, content);
+			version++;
+			Server.sectionCache.put(this, content); // write through
+		} finally {
+			fileLock.writeLock().unlock();
 		}
 	}
 
@@ -89,15 +316,43 @@ public class Section {
 	 * @throws IOException if a disk error occurs
 	 */
 	public String getContent() throws IOException {
-		StringBuilder data = new StringBuilder();
-		List<String> list;
-		synchronized (path) {
-			list = Files.readAllLines(path);
+		String content = Server.sectionCache.get(this);
+		if (content != null)
+			return content;
+
+		fileLock.readLock().lock();
+		try {
+			if (version == 0) // never saved, the storage has nothing
+				return "";
+			content = parent.getStore().readSection(index); // as saved, line endings included
+			Server.sectionCache.put(this, content); // a save can't overwrite a newer content meanwhile
+		} finally {
+			fileLock.readLock().unlock();
 		}
-		for (String line : list) {
-			data.append(line);
-			data.append(System.lineSeparator());
+		return content;
+	}
+
+	/**
+	 * Sends the stored section to a channel as it is, without decoding it,
+	 * after a header that depends on the content size
+	 *
+	 * @param header creates the header bytes for a content size
+	 * @param target the destination channel
+	 *
+	 * @throws IOException if a disk or network error occurs
+	 */
+	public void transferContent(LongFunction<ByteBuffer> header, WritableByteChannel target) throws IOException {
+		fileLock.readLock().lock(); // the size must not change during the transfer
+		try {
+			if (version == 0) { // never saved, the storage has nothing
+				ByteBuffer headerBuffer = header.apply(0);
+				while (headerBuffer.hasRemaining())
+					target.write(headerBuffer);
+				return;
+			}
+			parent.getStore().transferSection(index, header, target);
+		} finally {
+			fileLock.readLock().unlock();
 		}
-		return data.toString();
 	}
 }
@@ -0,0 +1,167 @@
+package turing.server;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implements a concurrent cache of the section contents, bounded by Server.CACHE_BYTES
+ * and evicting approximately the least recently used sections
+ *
+ * A hit only stamps the access time of its entry, without locking. Inserts take a lock and, when the cache
+ * is full, evict the least recently used of EVICTION_SAMPLES random entries, until the content fits.
+ */
+public class SectionCache {
+	private static final int EVICTION_SAMPLES = 5; // entries compared to choose the one to evict
+
+	/**
+	 * Key: section
+	 */
+	private final Map<Section, Entry> contents = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock(); // inserts and evictions
+	private final ArrayList<Entry> entries = new ArrayList<>(); // the cached entries, to sample them
+	private long size = 0; // cached bytes
+
+	// statistics
+	private final LongAdder hits      = new LongAdder();
+	private final LongAdder misses    = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a new section cache
+	 */
+	public SectionCache() {
+		super();
+	}
+
+	/**
+	 * Returns the cached content of a section
+	 *
+	 * @param section the section
+	 *
+	 * @return the section content, if cached
+	 *         null otherwise
+	 */
+	public String get(Section section) {
+		if (Server.CACHE_BYTES == 0) // disabled
+			return null;
+
+		Entry entry = contents.get(section);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		entry.lastAccess = System.nanoTime();
+		hits.increment();
+		return entry.content;
+	}
+
+	/**
+	 * Caches the content of a section, evicting the least recently used ones if needed
+	 * NOTE: the caller must hold the section file lock (read or write), so that an old content never replaces a new one
+	 *
+	 * @param section the section
+	 * @param content the section content
+	 */
+	public void put(Section section, String content) {
+		if (Server.CACHE_BYTES == 0) // disabled
+			return;
+
+		long weight = weight(content);
+		lock.lock();
+		try {
+			Entry old = contents.remove(section);
+			if (old != null)
+				removeEntry(old);
+
+			if (weight > Server.CACHE_BYTES) // too big
+				return;
+
+			Entry entry = new Entry(section, content, weight);
+			entry.slot = entries.size();
+			entries.add(entry);
+			contents.put(section, entry);
+			size += weight;
+
+			// evicting approximately least recently used sections
+			while (size > Server.CACHE_BYTES) {
+				Entry eldest = null;
+				for (int i = 0; i < EVICTION_SAMPLES; i++) {
+					Entry sampled = entries.get(ThreadLocalRandom.current().nextInt(entries.size()));
+					if (sampled != entry && (eldest == null || sampled.lastAccess < eldest.lastAccess))
+						eldest = sampled;
+				}
+				if (eldest == null) // only the new entry sampled
+					continue;
+				contents.remove(eldest.section);
+				removeEntry(eldest);
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry from the sampled ones, moving the last one in its slot
+	 * NOTE: the caller must hold the lock
+	 *
+	 * @param entry the entry removed from the cache
+	 */
+	private void removeEntry(Entry entry) {
+		Entry last = entries.remove(entries.size() - 1);
+		if (last != entry) {
+			last.slot = entry.slot;
+			entries.set(entry.slot, last);
+		}
+		size -= entry.weight;
+	}
+
+	/**
+	 * Returns the cache statistics
+	 *
+	 * @return a description of the cache usage
+	 */
+	public String getStatistics() {
+		long cachedBytes;
+		lock.lock();
+		try {
+			cachedBytes = size;
+		} finally {
+			lock.unlock();
+		}
+		return hits.sum() + " hits, " + misses.sum() + " misses, " + evictions.sum() + " evictions, " +
+				cachedBytes + "/" + Server.CACHE_BYTES + " bytes";
+	}
+
+	/**
+	 * Estimates the memory used by a content
+	 *
+	 * @param content the content
+	 *
+	 * @return the estimated bytes, two for each char
+	 */
+	private static long weight(String content) {
+		return 2L * content.length();
+	}
+
+	/**
+	 * A cached content
+	 */
+	private static final class Entry {
+		final Section section;
+		final String content;
+		final long weight;                          // estimated bytes
+		volatile long lastAccess = System.nanoTime(); // last hit or insert
+		int slot;                                   // position in the sampled entries, protected by the lock
+
+		Entry(Section section, String content, long weight) {
+			this.section = section;
+			this.content = content;
+			this.weight = weight;
+		}
+	}
+}
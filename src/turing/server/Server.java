@@ -2,10 +2,11 @@ package turing.server;
 
 import turing.ServerNotificationManagerAPI;
 import turing.UserManagerAPI;
+import turing.server.storage.*;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,8 +16,8 @@ import java.rmi.registry.*;
 import java.rmi.server.*;
 import java.util.Comparator;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.out;
@@ -32,10 +33,38 @@ public class Server implements Runnable {
 	static int RMI_PORT       = 1099;   // Java RMI port
 	static int MTU            = 1500;   // Ethernet MTU
 
-	static int MAX_SECTIONS   = 1024;   // max number of sections for a document
+	static int MAX_SECTIONS   = 1 << 20; // max number of sections for a document (sparse)
 
 	static int TIMEOUT_MILLIS = 1000;   // handler thread timeout
 
+	static long EDIT_LEASE_MILLIS = 30000; // section edit lock duration, renewed by the editing client
+	static final long LEASE_TICK_MILLIS = 100; // lease expiry granularity
+	static final int  LEASE_WHEEL_SLOTS = 1024;
+
+	// connection handling modes
+	static final String MODE_BLOCKING = "blocking"; // a thread for each client
+	static final String MODE_NIO      = "nio";      // clients multiplexed on the event loops
+	static final String MODE_VIRTUAL  = "virtual";  // a virtual thread for each client
+
+	static String SERVER_MODE = MODE_BLOCKING; // connection handling mode
+	static int    EVENT_LOOPS = 2;             // number of event loop threads (nio mode)
+	static int    NIO_WORKERS = 8;             // threads handling the requests that wait for the disk (nio mode)
+
+	static int  CHAT_CHANNELS     = 2; // channels of the chat sender, shared by the documents
+	static long CHAT_BATCH_MILLIS = 5; // chat messages collected in a datagram, when more are queued
+
+	static long CACHE_BYTES = 64 * 1024 * 1024; // section cache size, 0 to disable it
+
+	// storage engines
+	static final String STORAGE_FILES       = "files";       // a file for each section
+	static final String STORAGE_MAPPED      = "mapped";      // a memory mapped file for each section
+	static final String STORAGE_SINGLE_FILE = "single_file"; // a data file and an index for each document
+	static final String STORAGE_MEMORY      = "memory";      // no persistence, for tests and benchmarks
+
+	static String  STORAGE = STORAGE_FILES; // document storage engine
+	static boolean WAL     = false;         // section writes through a write-ahead log
+	static final String WAL_FILE = "turing.wal"; // write-ahead log, in the documents folder
+
 	// Java RMI objects name
 	static String REGISTRATION_OBJECT = "reg";
 	static String NOTIFICATION_OBJECT = "not";
@@ -44,6 +73,10 @@ public class Server implements Runnable {
 	static final UserManager     userManager     = new UserManager();
 	static final DocumentManager documentManager = new DocumentManager();
 	static final AddressManager  addressManager  = new AddressManager();
+	static final SectionCache    sectionCache    = new SectionCache();
+	static final TimingWheel     leaseWheel      = new TimingWheel(LEASE_TICK_MILLIS, LEASE_WHEEL_SLOTS);
+	static Storage storage; // created at startup, depending on the configuration
+	static ChatSender chatSender; // created at startup, null if the chat is unavailable
 
 	/**
 	 * Creates a new server
@@ -67,23 +100,64 @@ public class Server implements Runnable {
 			return; // terminate server
 		}
 
-		ServerSocket serverSocket;
-		Socket clientConnection;
+		switch (STORAGE) {
+			case STORAGE_MAPPED:      storage = new MappedStorage(Paths.get(DOCS_ROOT)); break;
+			case STORAGE_SINGLE_FILE: storage = new SingleFileStorage(Paths.get(DOCS_ROOT)); break;
+			case STORAGE_MEMORY:      storage = new MemoryStorage(); break;
+			default:                  storage = new FileStorage(Paths.get(DOCS_ROOT));
+		}
+		if (WAL) {
+			try {
+				storage = new WalStorage(storage, Paths.get(DOCS_ROOT, WAL_FILE));
+			} catch (IOException e) {
+				System.err.println("Cannot open write-ahead log: " + e.getMessage());
+				return;
+			}
+		}
+
+		boolean nio = MODE_NIO.equals(SERVER_MODE);
+		ServerSocketChannel serverChannel; // blocking accept in every mode, sockets with channels allow zero copy
 		try {
-			serverSocket = new ServerSocket(DEFAULT_PORT);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(DEFAULT_PORT));
 		} catch (IOException e) {
 			System.err.println("Cannot create socket: " + e.getMessage()); // cannot create socket
 			return;
 		}
 
 		// initialize the thread pool
-		ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		ExecutorService threadPool;
+		ExecutorService workerPool = nio ? Executors.newFixedThreadPool(NIO_WORKERS) : null;
+		EventLoop[] eventLoops = new EventLoop[nio ? EVENT_LOOPS : 0];
+		if (nio) {
+			threadPool = Executors.newFixedThreadPool(EVENT_LOOPS);
+			try {
+				for (int i = 0; i < EVENT_LOOPS; i++) {
+					eventLoops[i] = new EventLoop(workerPool);
+					threadPool.execute(eventLoops[i]);
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot create event loop: " + e.getMessage());
+				threadPool.shutdownNow();
+				workerPool.shutdownNow();
+				return;
+			}
+		} else {
+			threadPool = VirtualThreads.newExecutor(); // cached thread pool, if not in virtual mode
+		}
+		leaseWheel.start(); // expires the edit locks not renewed
+
+		try {
+			chatSender = new ChatSender(CHAT_CHANNELS, MTU, CHAT_BATCH_MILLIS);
+		} catch (IOException e) {
+			System.err.println("Cannot create chat channel: " + e.getMessage()); // chat unavailable
+		}
 
 		// termination function (intercepts SIGINT generated by ctrl-c)
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			// close socket
 			try {
-				serverSocket.close();
+				serverChannel.close();
 			} catch (IOException e) {
 				System.err.println("Error closing socket: " + e.getMessage());
 			}
@@ -91,7 +165,12 @@ public class Server implements Runnable {
 			// terminate thread pool
 			out.println("Waiting threads termination...");
 			threadPool.shutdown();
+			if (workerPool != null)
+				workerPool.shutdown(); // the running tasks complete
 			ClientHandler.stopAllHandlers();
+			for (EventLoop eventLoop : eventLoops)
+				if (eventLoop != null)
+					eventLoop.shutdown();
 			try {
 				if (threadPool.awaitTermination(TIMEOUT_MILLIS / 1000 * 2, TimeUnit.SECONDS))
 					out.println("Threads terminated correctly");
@@ -103,6 +182,16 @@ public class Server implements Runnable {
 				System.err.println("Waiting interrupted: " + e.getMessage());
 			}
 
+			leaseWheel.stop();
+			if (chatSender != null)
+				chatSender.close();
+			out.println("Section cache: " + sectionCache.getStatistics());
+			try {
+				storage.close();
+			} catch (IOException e) {
+				System.err.println("Error closing storage: " + e.getMessage());
+			}
+
 			// deleting files
 			out.println("Deleting files...");
 			Path rootPath = Paths.get(DOCS_ROOT);
@@ -117,18 +206,23 @@ public class Server implements Runnable {
 			out.println("Server stopped");
 		}));
 
-		out.println("Server ready, waiting for connections...\nPress ctrl-C to terminate");
+		out.println("Server ready (" + SERVER_MODE + " mode), waiting for connections...\nPress ctrl-C to terminate");
 
 		// waiting for connections loop
+		int nextLoop = 0;
 		while (true) {
 			try {
-				clientConnection = serverSocket.accept();
+				if (nio) {
+					eventLoops[nextLoop].register(serverChannel.accept()); // round robin between the loops
+					nextLoop = (nextLoop + 1) % eventLoops.length;
+				} else {
+					threadPool.execute(new ClientHandler(serverChannel.accept().socket()));
+				}
 			} catch (IOException e) {
-				if (serverSocket.isClosed()) // terminate server
+				if (!serverChannel.isOpen()) // terminate server
 					break;
 				throw new RuntimeException("Error accepting client connection", e);
 			}
-			threadPool.execute(new ClientHandler(clientConnection));
 		}
 	}
 
@@ -157,10 +251,34 @@ public class Server implements Runnable {
 			MTU            = Integer.parseInt(prop.getProperty("MTU"));
 			MAX_SECTIONS   = Integer.parseInt(prop.getProperty("MAX_SECTIONS"));
 			TIMEOUT_MILLIS = Integer.parseInt(prop.getProperty("TIMEOUT_MILLIS"));
+			EVENT_LOOPS    = Integer.parseInt(prop.getProperty("EVENT_LOOPS", String.valueOf(EVENT_LOOPS)));
+			NIO_WORKERS    = Integer.parseInt(prop.getProperty("NIO_WORKERS", String.valueOf(NIO_WORKERS)));
+			CHAT_CHANNELS  = Integer.parseInt(prop.getProperty("CHAT_CHANNELS", String.valueOf(CHAT_CHANNELS)));
+			CHAT_BATCH_MILLIS = Long.parseLong(prop.getProperty("CHAT_BATCH_MILLIS", String.valueOf(CHAT_BATCH_MILLIS)));
+			CACHE_BYTES    = Long.parseLong(prop.getProperty("CACHE_BYTES", String.valueOf(CACHE_BYTES)));
+			EDIT_LEASE_MILLIS = Long.parseLong(prop.getProperty("EDIT_LEASE_MILLIS", String.valueOf(EDIT_LEASE_MILLIS)));
 		} catch (NumberFormatException e) {
 			System.err.println("Bad configuration file format: " + e.getMessage());
 		}
 
+		SERVER_MODE = prop.getProperty("SERVER_MODE", SERVER_MODE);
+		if (!MODE_BLOCKING.equals(SERVER_MODE) && !MODE_NIO.equals(SERVER_MODE) && !MODE_VIRTUAL.equals(SERVER_MODE)) {
+			System.err.println("Unknown server mode: " + SERVER_MODE);
+			SERVER_MODE = MODE_BLOCKING;
+		}
+		if (MODE_VIRTUAL.equals(SERVER_MODE) && !VirtualThreads.isSupported()) {
+			System.err.println("Virtual threads not supported by this JVM, using platform threads");
+			SERVER_MODE = MODE_BLOCKING;
+		}
+
+		STORAGE = prop.getProperty("STORAGE", STORAGE);
+		if (!STORAGE_FILES.equals(STORAGE) && !STORAGE_MAPPED.equals(STORAGE) &&
+				!STORAGE_SINGLE_FILE.equals(STORAGE) && !STORAGE_MEMORY.equals(STORAGE)) {
+			System.err.println("Unknown storage: " + STORAGE);
+			STORAGE = STORAGE_FILES;
+		}
+		WAL = Boolean.parseBoolean(prop.getProperty("WAL", String.valueOf(WAL)));
+
 		REGISTRATION_OBJECT = prop.getProperty("REGISTRATION_OBJECT", REGISTRATION_OBJECT);
 		NOTIFICATION_OBJECT = prop.getProperty("NOTIFICATION_OBJECT", NOTIFICATION_OBJECT);
 	}
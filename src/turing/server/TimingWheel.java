@@ -0,0 +1,136 @@
+package turing.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Implements a hashed timing wheel, that fires timeouts with a tick granularity
+ *
+ * A timeout is put in the slot of its deadline tick, modulo the number of slots, and a thread visits
+ * a slot at each tick: the timeouts of later rotations are kept, the others are fired. Scheduling is
+ * lock-free and a tick only visits the timeouts of its slot.
+ */
+public class TimingWheel {
+	/**
+	 * A timeout that can be postponed when it fires
+	 */
+	public interface Timeout {
+		/**
+		 * Fires the timeout
+		 *
+		 * @param now the current time in milliseconds
+		 *
+		 * @return the new deadline in milliseconds, if the timeout has been postponed
+		 *         0 otherwise
+		 */
+		long expire(long now);
+	}
+
+	/**
+	 * A scheduled timeout
+	 */
+	private static final class Node {
+		final Timeout timeout;
+		final long tick; // deadline tick
+
+		Node(Timeout timeout, long tick) {
+			this.timeout = timeout;
+			this.tick = tick;
+		}
+	}
+
+	private final long tickMillis;             // tick duration
+	private final Queue<Node>[] slots;         // timeouts by deadline tick, modulo the number of slots
+	private volatile long currentTick;         // last visited tick
+	private final Thread worker = new Thread(this::run, "timing-wheel");
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a new timing wheel
+	 *
+	 * @param tickMillis the tick duration in milliseconds
+	 * @param slots      the number of slots
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickMillis, int slots) {
+		this.tickMillis = tickMillis;
+		this.slots = new Queue[slots];
+		for (int i = 0; i < slots; i++)
+			this.slots[i] = new ConcurrentLinkedQueue<>();
+		currentTick = System.currentTimeMillis() / tickMillis;
+		worker.setDaemon(true);
+	}
+
+	/**
+	 * Starts the wheel thread
+	 */
+	public void start() {
+		worker.start();
+	}
+
+	/**
+	 * Stops the wheel thread, the pending timeouts don't fire anymore
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * Schedules a timeout
+	 *
+	 * @param timeout  the timeout
+	 * @param deadline the deadline in milliseconds, fired at the first tick after it
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1); // never in the past
+		slots[(int) (tick % slots.length)].add(new Node(timeout, tick));
+	}
+
+	/**
+	 * Visits a slot at each tick
+	 */
+	private void run() {
+		List<Node> due = new ArrayList<>();
+		while (!stopped) {
+			long now = System.currentTimeMillis();
+			long nowTick = now / tickMillis;
+			if (nowTick <= currentTick) { // waiting the next tick
+				try {
+					Thread.sleep((currentTick + 1) * tickMillis - now);
+				} catch (InterruptedException e) {
+					continue; // checking if stopped
+				}
+				continue;
+			}
+
+			// visiting the slots of the elapsed ticks, more than one if late
+			for (long tick = currentTick + 1; tick <= nowTick && tick - currentTick <= slots.length; tick++) {
+				Queue<Node> slot = slots[(int) (tick % slots.length)];
+				for (int i = slot.size(); i > 0; i--) { // the ones added during the visit wait the next rotation
+					Node node = slot.poll();
+					if (node == null)
+						break;
+					if (node.tick > nowTick)
+						slot.add(node); // later rotation
+					else
+						due.add(node);
+				}
+			}
+			currentTick = nowTick;
+
+			for (Node node : due) {
+				try {
+					long deadline = node.timeout.expire(now);
+					if (deadline > 0) // postponed
+						schedule(node.timeout, deadline);
+				} catch (RuntimeException e) {
+					System.err.println("Timeout error: " + e.getMessage());
+				}
+			}
+			due.clear();
+		}
+	}
+}
@@ -5,36 +5,47 @@ import turing.server.exceptions.AlreadyLoggedException;
 
 import java.rmi.RemoteException;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents user data
  */
 public class User {
+	private final int id; // dense, assigned by the user manager
 	private final String username;
 	private String password;
 	private boolean onlineStatus = false;
 
-	private final List<Document> myDocuments = new LinkedList<>();
+	private final DocumentListing documents = new DocumentListing(); // created and shared documents
 	private Section editingSection = null;
 
 	private ClientNotificationManagerAPI notifier = null;
 	private final Queue<String> pendingNotifications = new LinkedList<>();
-
-	final List<Document> sharedDocuments = new LinkedList<>();
+	private final ReentrantLock notifierLock = new ReentrantLock(); // not a monitor, RMI calls would pin virtual threads
 
 	/**
 	 * Creates a new user
 	 *
+	 * @param id       the user ID
 	 * @param username the user username
 	 * @param password the user password
 	 */
-	public User(String username, String password) {
+	public User(int id, String username, String password) {
+		this.id = id;
 		this.username = username;
 		this.password = password;
 	}
 
+	/**
+	 * Returns the user ID
+	 *
+	 * @return the user ID
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * Returns the user username
 	 *
@@ -63,12 +74,12 @@ public class User {
 	}
 
 	/**
-	 * Returns the collection of user's documents
+	 * Returns the listing of the documents the user can edit
 	 *
-	 * @return the user's documents list
+	 * @return the user's documents listing
 	 */
-	public List<Document> getMyDocuments() {
-		return myDocuments;
+	public DocumentListing getDocuments() {
+		return documents;
 	}
 
 	/**
@@ -100,7 +111,16 @@ public class User {
 	 * @param document the document to add
 	 */
 	public void addDocument(Document document) {
-		myDocuments.add(document);
+		documents.add(document, true);
+	}
+
+	/**
+	 * Adds a document shared with the user
+	 *
+	 * @param document the shared document
+	 */
+	public void addSharedDocument(Document document) {
+		documents.add(document, false);
 	}
 
 	/**
@@ -118,8 +138,11 @@ public class User {
 	 * @param notifier the client notifier
 	 */
 	public void setNotifier(ClientNotificationManagerAPI notifier) {
-		synchronized (this) { // to change notifier safely
+		notifierLock.lock(); // to change notifier safely
+		try {
 			this.notifier = notifier;
+		} finally {
+			notifierLock.unlock();
 		}
 	}
 
@@ -131,11 +154,14 @@ public class User {
 	 * @throws RemoteException if a RMI communication error occurs
 	 */
 	public void sendNotification(String notification) throws RemoteException {
-		synchronized (this) { // because notifier must not change while sending notification
+		notifierLock.lock(); // because notifier must not change while sending notification
+		try {
 			if (notifier != null)
 				notifier.sendNotification(notification);
 			else
 				pendingNotifications.add(notification);
+		} finally {
+			notifierLock.unlock();
 		}
 	}
 
@@ -145,13 +171,16 @@ public class User {
 	 * @throws RemoteException if a RMI communication error occurs
 	 */
 	public void flushPendingNotifications() throws RemoteException {
-		synchronized (this) { // because notifier must not change while sending notification
+		notifierLock.lock(); // because notifier must not change while sending notification
+		try {
 			if (notifier == null)
 				return;
 
 			while (!pendingNotifications.isEmpty()) {
 				notifier.sendNotification(pendingNotifications.poll());
 			}
+		} finally {
+			notifierLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,83 @@
+package turing.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implements a concurrent set of users, as a bitmap indexed by user ID
+ *
+ * Lookups don't lock, additions are serialized because they may grow the bitmap.
+ */
+public class UserBitmap {
+	private static final int INITIAL_WORDS = 1; // 64 users
+
+	private volatile AtomicLongArray words = new AtomicLongArray(INITIAL_WORDS); // replaced when growing
+	private volatile int size = 0;                                             // number of users
+	private final ReentrantLock lock = new ReentrantLock();                    // protects the additions
+
+	/**
+	 * Creates a new empty user bitmap
+	 */
+	public UserBitmap() {
+		super();
+	}
+
+	/**
+	 * Adds a user
+	 *
+	 * @param user the user to add
+	 *
+	 * @return true if the user was not in the set
+	 *         false otherwise
+	 */
+	public boolean add(User user) {
+		int id = user.getId();
+		int word = id >>> 6;
+		long bit = 1L << id; // shifts are modulo 64
+
+		lock.lock();
+		try {
+			AtomicLongArray current = words;
+			if (word >= current.length()) { // growing the bitmap
+				AtomicLongArray bigger = new AtomicLongArray(Math.max(current.length() * 2, word + 1));
+				for (int i = 0; i < current.length(); i++)
+					bigger.set(i, current.get(i));
+				words = current = bigger;
+			}
+
+			long old = current.get(word);
+			if ((old & bit) != 0) // already in the set
+				return false;
+			current.set(word, old | bit);
+			size++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if a user is in the set
+	 *
+	 * @param user the user to check
+	 *
+	 * @return true if the user is in the set
+	 *         false otherwise
+	 */
+	public boolean contains(User user) {
+		int id = user.getId();
+		AtomicLongArray current = words;
+		int word = id >>> 6;
+		return word < current.length() && (current.get(word) & (1L << id)) != 0;
+	}
+
+	/**
+	 * Checks if the set is empty
+	 *
+	 * @return true if there are no users
+	 *         false otherwise
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+}
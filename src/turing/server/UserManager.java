@@ -8,6 +8,7 @@ import java.rmi.RemoteException;
 import java.rmi.server.RemoteServer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements a concurrent user manager
@@ -18,6 +19,8 @@ public class UserManager extends RemoteServer implements UserManagerAPI {
 	 */
 	private Map<String, User> users = new ConcurrentHashMap<>();
 
+	private final AtomicInteger nextId = new AtomicInteger(); // dense user IDs, for the document ACLs
+
 	/**
 	 * Creates a new user manager
 	 */
@@ -46,7 +49,13 @@ public class UserManager extends RemoteServer implements UserManagerAPI {
 		if (username.contains(File.separator))
 			throw new IllegalArgumentException("The username can't contain this character: " + File.separator);
 
-		return users.putIfAbsent(username, new User(username, password)) == null;
+		// the ID is taken only if the username is free, to keep the IDs dense
+		boolean[] registered = { false };
+		users.computeIfAbsent(username, name -> {
+			registered[0] = true;
+			return new User(nextId.getAndIncrement(), name, password);
+		});
+		return registered[0];
 	}
 
 	/**
@@ -0,0 +1,88 @@
+package turing.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts tasks on virtual threads when the server runs in virtual mode
+ *
+ * NOTE: virtual threads are looked up at runtime, so the server still builds and runs on JDKs without them,
+ *       falling back to platform threads
+ */
+final class VirtualThreads {
+	private static final MethodHandle NEW_EXECUTOR; // Executors.newVirtualThreadPerTaskExecutor()
+	private static final MethodHandle START_THREAD; // Thread.startVirtualThread(Runnable)
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodHandle newExecutor, startThread;
+		try {
+			newExecutor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+					MethodType.methodType(ExecutorService.class));
+			startThread = lookup.findStatic(Thread.class, "startVirtualThread",
+					MethodType.methodType(Thread.class, Runnable.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) { // virtual threads not available
+			newExecutor = null;
+			startThread = null;
+		}
+		NEW_EXECUTOR = newExecutor;
+		START_THREAD = startThread;
+	}
+
+	/**
+	 * Creates a new virtual threads class
+	 */
+	private VirtualThreads() {
+		super();
+	}
+
+	/**
+	 * Checks if the running JVM supports virtual threads
+	 *
+	 * @return true if virtual threads are available
+	 *         false otherwise
+	 */
+	static boolean isSupported() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates the executor for the client handlers
+	 *
+	 * @return an executor that starts a virtual thread for each task, if the server is in virtual mode
+	 *         a cached thread pool otherwise
+	 */
+	static ExecutorService newExecutor() {
+		if (Server.MODE_VIRTUAL.equals(Server.SERVER_MODE) && isSupported()) {
+			try {
+				return (ExecutorService) NEW_EXECUTOR.invokeExact();
+			} catch (Throwable e) {
+				System.err.println("Cannot create virtual thread executor: " + e.getMessage());
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Starts a task on a new thread, virtual if the server is in virtual mode
+	 *
+	 * @param task the task to run
+	 *
+	 * @return the started thread
+	 */
+	static Thread start(Runnable task) {
+		if (Server.MODE_VIRTUAL.equals(Server.SERVER_MODE) && isSupported()) {
+			try {
+				return (Thread) START_THREAD.invokeExact(task);
+			} catch (Throwable e) {
+				System.err.println("Cannot start virtual thread: " + e.getMessage());
+			}
+		}
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,47 @@
+package turing.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.LongFunction;
+
+/**
+ * Interface for the storage of a document
+ *
+ * NOTE: the caller serializes the operations on the same section,
+ *       different sections of the same document can be accessed concurrently
+ */
+public interface DocumentStore {
+
+	/**
+	 * Reads the content of a section
+	 *
+	 * @param index the section number, from 0
+	 *
+	 * @return the section content, as it has been written
+	 *
+	 * @throws IOException if a disk error occurs
+	 */
+	String readSection(int index) throws IOException;
+
+	/**
+	 * Replaces the content of a section
+	 *
+	 * @param index   the section number, from 0
+	 * @param content the new section content
+	 *
+	 * @throws IOException if a disk error occurs
+	 */
+	void writeSection(int index, String content) throws IOException;
+
+	/**
+	 * Sends the UTF-8 bytes of a section to a channel, after a header that depends on their size
+	 *
+	 * @param index  the section number, from 0
+	 * @param header creates the header bytes for a content size
+	 * @param target the destination channel
+	 *
+	 * @throws IOException if a disk or network error occurs
+	 */
+	void transferSection(int index, LongFunction<ByteBuffer> header, WritableByteChannel target) throws IOException;
+}
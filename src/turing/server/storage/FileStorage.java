@@ -0,0 +1,148 @@
+package turing.server.storage;
+
+import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.function.LongFunction;
+
+/**
+ * Implements a storage with a directory for each document and a file for each section
+ */
+public class FileStorage implements Storage {
+	private final Path root; // documents folder
+
+	/**
+	 * Creates a new file storage
+	 *
+	 * @param root the documents folder
+	 */
+	public FileStorage(Path root) {
+		this.root = root;
+	}
+
+	@Override
+	public DocumentStore createDocument(String creator, String name, int sections)
+			throws IOException, PreExistentDocumentException {
+		// creating directory
+		String dirPath = root + File.separator + creator + File.separator + name;
+		File file = new File(dirPath);
+		if (file.exists())
+			throw new PreExistentDocumentException(dirPath + " already created");
+		if (!file.mkdirs())
+			throw new IOException("mkdirs " + dirPath + " failed");
+
+		return openDocument(Path.of(dirPath)); // section files are created at their first write
+	}
+
+	/**
+	 * Creates the store of a document whose folder has been created
+	 *
+	 * @param directory the document folder
+	 *
+	 * @return the document storage
+	 */
+	DocumentStore openDocument(Path directory) {
+		return new FileDocumentStore(directory);
+	}
+
+	@Override
+	public void deleteDocument(String creator, String name) throws IOException, InexistentDocumentException {
+		deleteDirectory(root.resolve(creator).resolve(name));
+	}
+
+	@Override
+	public void close() {
+		// no open files
+	}
+
+	/**
+	 * Deletes a document folder with all its files
+	 *
+	 * @param directory the document folder
+	 *
+	 * @throws IOException                 if a disk error occurs
+	 * @throws InexistentDocumentException if the folder doesn't exist
+	 */
+	static void deleteDirectory(Path directory) throws IOException, InexistentDocumentException {
+		if (!Files.isDirectory(directory))
+			throw new InexistentDocumentException(directory + " not found");
+
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(file);
+		}
+	}
+
+	/**
+	 * A document stored with a file for each section, missing until the section is written
+	 */
+	static class FileDocumentStore implements DocumentStore {
+		private final Path directory; // document folder
+
+		FileDocumentStore(Path directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Returns the file of a section
+		 *
+		 * @param index the section number, from 0
+		 *
+		 * @return the section file path
+		 */
+		Path path(int index) {
+			return directory.resolve(String.valueOf(index + 1));
+		}
+
+		@Override
+		public String readSection(int index) throws IOException {
+			try {
+				return Files.readString(path(index));
+			} catch (NoSuchFileException e) { // never written
+				return "";
+			}
+		}
+
+		@Override
+		public void writeSection(int index, String content) throws IOException {
+			Files.writeString(path(index), content,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+
+		@Override
+		public void transferSection(int index, LongFunction<ByteBuffer> header, WritableByteChannel target)
+				throws IOException {
+			FileChannel file;
+			try {
+				file = FileChannel.open(path(index), StandardOpenOption.READ);
+			} catch (NoSuchFileException e) { // never written
+				ByteBuffer headerBuffer = header.apply(0);
+				while (headerBuffer.hasRemaining())
+					target.write(headerBuffer);
+				return;
+			}
+
+			try (file) {
+				long size = file.size();
+				ByteBuffer headerBuffer = header.apply(size);
+				while (headerBuffer.hasRemaining())
+					target.write(headerBuffer);
+
+				// zero copy, if the target is a socket channel
+				for (long position = 0; position < size; )
+					position += file.transferTo(position, size - position, target);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package turing.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Implements a storage with a file for each section, the large ones read and written through memory mappings
+ *
+ * Mapping a small section costs more than copying it, and the mapping is only released by the garbage
+ * collector: the sections under MAP_THRESHOLD bytes are read and written with the file channel.
+ */
+public class MappedStorage extends FileStorage {
+	private static final int MAP_THRESHOLD = 256 * 1024; // smallest mapped section, in bytes
+
+	/**
+	 * Creates a new mapped storage
+	 *
+	 * @param root the documents folder
+	 */
+	public MappedStorage(Path root) {
+		super(root);
+	}
+
+	@Override
+	DocumentStore openDocument(Path directory) {
+		return new MappedDocumentStore(directory);
+	}
+
+	/**
+	 * A document with a file for each section, the large ones accessed through memory mappings
+	 */
+	private static class MappedDocumentStore extends FileDocumentStore {
+
+		MappedDocumentStore(Path directory) {
+			super(directory);
+		}
+
+		@Override
+		public String readSection(int index) throws IOException {
+			try (FileChannel file = FileChannel.open(path(index), StandardOpenOption.READ)) {
+				long size = file.size();
+				if (size >= MAP_THRESHOLD) {
+					MappedByteBuffer content = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					return StandardCharsets.UTF_8.decode(content).toString();
+				}
+
+				ByteBuffer content = ByteBuffer.allocate((int) size);
+				int read = 0;
+				while (content.hasRemaining() && read >= 0) // shorter if truncated meanwhile
+					read = file.read(content);
+				content.flip();
+				return StandardCharsets.UTF_8.decode(content).toString();
+			} catch (NoSuchFileException e) { // never written
+				return "";
+			}
+		}
+
+		@Override
+		public void writeSection(int index, String content) throws IOException {
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(content);
+			try (FileChannel file = FileChannel.open(path(index),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				file.truncate(bytes.remaining());
+				if (bytes.remaining() >= MAP_THRESHOLD) {
+					MappedByteBuffer mapping = file.map(FileChannel.MapMode.READ_WRITE, 0, bytes.remaining());
+					mapping.put(bytes);
+					mapping.force(); // on disk before the save is acknowledged
+				} else {
+					while (bytes.hasRemaining())
+						file.write(bytes);
+					file.force(false);
+				}
+			}
+		}
+	}
+}
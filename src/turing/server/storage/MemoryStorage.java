@@ -0,0 +1,85 @@
+package turing.server.storage;
+
+import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * Implements a storage that keeps the documents in memory, without persistence (for tests and benchmarks)
+ */
+public class MemoryStorage implements Storage {
+	/**
+	 * Key: string "username" + "/" + "document name"
+	 */
+	private final Map<String, MemoryDocumentStore> documents = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new memory storage
+	 */
+	public MemoryStorage() {
+		super();
+	}
+
+	@Override
+	public DocumentStore createDocument(String creator, String name, int sections)
+			throws PreExistentDocumentException {
+		MemoryDocumentStore store = new MemoryDocumentStore();
+		if (documents.putIfAbsent(creator + "/" + name, store) != null)
+			throw new PreExistentDocumentException(creator + "/" + name + " already created");
+		return store;
+	}
+
+	@Override
+	public void deleteDocument(String creator, String name) throws InexistentDocumentException {
+		if (documents.remove(creator + "/" + name) == null)
+			throw new InexistentDocumentException(creator + "/" + name + " not found");
+	}
+
+	@Override
+	public void close() {
+		documents.clear();
+	}
+
+	/**
+	 * A document stored as the UTF-8 bytes of its written sections
+	 */
+	private static class MemoryDocumentStore implements DocumentStore {
+		private static final byte[] EMPTY = new byte[0];
+
+		/**
+		 * Key: section number, only for the written sections
+		 */
+		private final Map<Integer, byte[]> sections = new ConcurrentHashMap<>();
+
+		MemoryDocumentStore() {
+			super();
+		}
+
+		@Override
+		public String readSection(int index) {
+			return new String(sections.getOrDefault(index, EMPTY), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void writeSection(int index, String content) {
+			sections.put(index, content.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void transferSection(int index, LongFunction<ByteBuffer> header, WritableByteChannel target)
+				throws IOException {
+			byte[] content = sections.getOrDefault(index, EMPTY);
+			ByteBuffer[] buffers = { header.apply(content.length), ByteBuffer.wrap(content) };
+			for (ByteBuffer buffer : buffers)
+				while (buffer.hasRemaining())
+					target.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package turing.server.storage;
+
+import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Implements a storage with a single data file for each document, where the section versions are appended,
+ * and a sparse index with the offset and the length of the current version of each written section
+ *
+ * The index names the data file generation. A write appends a fixed size record to the index log of the
+ * generation, once the data has been forced to disk, so the log never points to unwritten data; opening a
+ * document replays the log on the index. When the old versions take more space than the current ones,
+ * the document is compacted in a new data file generation, and only then the index is replaced atomically.
+ *
+ * Index log record:
+ *   int section, long offset, int length, int CRC32 (of the previous bytes)
+ */
+public class SingleFileStorage implements Storage {
+	private static final String DATA_FILE  = "data.";  // followed by the generation
+	private static final String INDEX_FILE = "index";
+	private static final String LOG_FILE   = "index.log."; // followed by the generation
+
+	private static final int LOG_RECORD_BYTES = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES; // with the CRC
+
+	private static final long COMPACTION_MIN_BYTES = 1024 * 1024; // smaller files are never compacted
+
+	private final Path root; // documents folder
+
+	/**
+	 * Key: document folder, to close the data files
+	 */
+	private final Map<Path, SingleFileDocumentStore> stores = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new single file storage
+	 *
+	 * @param root the documents folder
+	 */
+	public SingleFileStorage(Path root) {
+		this.root = root;
+	}
+
+	@Override
+	public DocumentStore createDocument(String creator, String name, int sections)
+			throws IOException, PreExistentDocumentException {
+		// creating directory
+		String dirPath = root + File.separator + creator + File.separator + name;
+		File file = new File(dirPath);
+		if (file.exists())
+			throw new PreExistentDocumentException(dirPath + " already created");
+		if (!file.mkdirs())
+			throw new IOException("mkdirs " + dirPath + " failed");
+
+		SingleFileDocumentStore store = new SingleFileDocumentStore(Path.of(dirPath), sections);
+		stores.put(store.directory, store);
+		return store;
+	}
+
+	/**
+	 * Opens the storage of a document written by a previous run
+	 *
+	 * @param creator the document creator username
+	 * @param name    the document name
+	 *
+	 * @return the document storage
+	 *
+	 * @throws IOException                 if a disk error occurs
+	 * @throws InexistentDocumentException if the document doesn't exist
+	 */
+	public DocumentStore openDocument(String creator, String name) throws IOException, InexistentDocumentException {
+		Path directory = Path.of(root + File.separator + creator + File.separator + name);
+		if (!Files.isRegularFile(directory.resolve(INDEX_FILE)))
+			throw new InexistentDocumentException(directory + " not found");
+
+		SingleFileDocumentStore store = new SingleFileDocumentStore(directory);
+		stores.put(store.directory, store);
+		return store;
+	}
+
+	@Override
+	public void deleteDocument(String creator, String name) throws IOException, InexistentDocumentException {
+		Path directory = Path.of(root + File.separator + creator + File.separator + name);
+		SingleFileDocumentStore store = stores.remove(directory);
+		if (store != null)
+			store.close();
+		FileStorage.deleteDirectory(directory);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (SingleFileDocumentStore store : stores.values())
+			store.close();
+	}
+
+	/**
+	 * A document stored in a single data file
+	 */
+	private static class SingleFileDocumentStore implements DocumentStore {
+		private final Path directory;
+		private final int sections; // number of sections
+
+		/**
+		 * Key: section number, only for the written sections (the others are empty)
+		 */
+		private final Map<Integer, Extent> extents = new HashMap<>();
+
+		private long generation = 0;      // data file generation
+		private FileChannel data;         // current data file
+		private long dataSize = 0;        // bytes written in the data file
+		private FileChannel log;          // index log of the current generation
+		private long logSize = 0;         // bytes written in the index log
+		private long liveBytes = 0;       // bytes of the current section versions
+
+		// writes and compactions exclude reads, that can run in parallel
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * Creates the data and index files of a new document
+		 *
+		 * @param directory the document folder
+		 * @param sections  the number of sections
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		SingleFileDocumentStore(Path directory, int sections) throws IOException {
+			this.directory = directory;
+			this.sections = sections;
+			data = FileChannel.open(dataPath(generation),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			writeIndex(generation, extents);
+		}
+
+		/**
+		 * Opens the data and index files of an existing document, replaying the index log
+		 *
+		 * @param directory the document folder
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		SingleFileDocumentStore(Path directory) throws IOException {
+			this.directory = directory;
+
+			ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(INDEX_FILE)));
+			generation = index.getLong();
+			sections = index.getInt();
+			for (int i = index.getInt(); i > 0; i--)
+				putExtent(index.getInt(), new Extent(index.getLong(), index.getInt()));
+
+			data = FileChannel.open(dataPath(generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			dataSize = data.size(); // the bytes after the last logged version are never read
+			log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			// replaying the complete records, an incomplete last one was never acknowledged
+			ByteBuffer record = ByteBuffer.allocate(LOG_RECORD_BYTES);
+			CRC32 crc = new CRC32();
+			while (true) {
+				record.clear();
+				int read = 0;
+				while (record.hasRemaining() && read >= 0)
+					read = log.read(record, logSize + record.position());
+				if (record.hasRemaining())
+					break;
+				crc.reset();
+				crc.update(record.array(), 0, LOG_RECORD_BYTES - Integer.BYTES);
+				record.flip();
+				int section = record.getInt();
+				Extent extent = new Extent(record.getLong(), record.getInt());
+				if (record.getInt() != (int) crc.getValue())
+					break;
+				putExtent(section, extent);
+				logSize += LOG_RECORD_BYTES;
+			}
+			log.truncate(logSize);
+		}
+
+		@Override
+		public String readSection(int index) throws IOException {
+			lock.readLock().lock();
+			try {
+				Extent extent = extents.get(index);
+				if (extent == null) // never written
+					return "";
+
+				ByteBuffer section = ByteBuffer.allocate(extent.length);
+				while (section.hasRemaining()) {
+					if (data.read(section, extent.offset + section.position()) < 0)
+						throw new EOFException("Section " + index + " truncated in " + dataPath(generation));
+				}
+				section.flip();
+				return StandardCharsets.UTF_8.decode(section).toString();
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public void writeSection(int index, String content) throws IOException {
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(content);
+			lock.writeLock().lock();
+			try {
+				// appending the new version
+				long offset = dataSize;
+				int length = bytes.remaining();
+				while (bytes.hasRemaining())
+					data.write(bytes, offset + length - bytes.remaining());
+				dataSize += length;
+				data.force(false);
+
+				// committing it
+				Extent extent = new Extent(offset, length);
+				appendLogRecord(index, extent);
+				putExtent(index, extent);
+
+				if (dataSize > COMPACTION_MIN_BYTES && dataSize - liveBytes > liveBytes) {
+					try {
+						compact();
+					} catch (IOException e) { // the write is committed, the compaction is retried at the next one
+						System.err.println("Cannot compact " + directory + ": " + e.getMessage());
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public void transferSection(int index, LongFunction<ByteBuffer> header, WritableByteChannel target)
+				throws IOException {
+			lock.readLock().lock(); // the data file must not be compacted during the transfer
+			try {
+				Extent extent = extents.get(index);
+				long offset = (extent == null) ? 0 : extent.offset;
+				long size = (extent == null) ? 0 : extent.length;
+				ByteBuffer headerBuffer = header.apply(size);
+				while (headerBuffer.hasRemaining())
+					target.write(headerBuffer);
+
+				// zero copy, if the target is a socket channel
+				for (long position = 0; position < size; )
+					position += data.transferTo(offset + position, size - position, target);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Copies the current section versions in a new data file generation
+		 * NOTE: the caller must hold the write lock
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		private void compact() throws IOException {
+			long newGeneration = generation + 1;
+			FileChannel newData = FileChannel.open(dataPath(newGeneration),
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			FileChannel newLog = null;
+
+			Map<Integer, Extent> newExtents = new HashMap<>();
+			long position = 0;
+			try {
+				for (Map.Entry<Integer, Extent> entry : extents.entrySet()) {
+					Extent extent = entry.getValue();
+					for (long copied = 0; copied < extent.length; )
+						copied += data.transferTo(extent.offset + copied, extent.length - copied,
+								newData.position(position + copied));
+					newExtents.put(entry.getKey(), new Extent(position, extent.length));
+					position += extent.length;
+				}
+				newData.force(false);
+				newLog = FileChannel.open(logPath(newGeneration),
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				writeIndex(newGeneration, newExtents);
+			} catch (IOException e) { // the current generation is still valid
+				newData.close();
+				if (newLog != null)
+					newLog.close();
+				Files.deleteIfExists(dataPath(newGeneration));
+				Files.deleteIfExists(logPath(newGeneration));
+				throw e;
+			}
+
+			// switching generation, the index names the new one
+			FileChannel oldData = data;
+			FileChannel oldLog = log;
+			long oldGeneration = generation;
+			extents.putAll(newExtents);
+			generation = newGeneration;
+			data = newData;
+			dataSize = position;
+			log = newLog;
+			logSize = 0;
+
+			oldData.close();
+			oldLog.close();
+			Files.deleteIfExists(dataPath(oldGeneration));
+			Files.deleteIfExists(logPath(oldGeneration));
+		}
+
+		/**
+		 * Sets the current version of a section
+		 *
+		 * @param index  the section number
+		 * @param extent the position of the version in the data file
+		 */
+		private void putExtent(int index, Extent extent) {
+			Extent old = extents.put(index, extent);
+			liveBytes += extent.length - (old == null ? 0 : old.length);
+		}
+
+		/**
+		 * Appends a section version to the index log and forces it to disk
+		 * NOTE: the caller must hold the write lock
+		 *
+		 * @param index  the section number
+		 * @param extent the position of the version in the data file
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		private void appendLogRecord(int index, Extent extent) throws IOException {
+			ByteBuffer record = ByteBuffer.allocate(LOG_RECORD_BYTES);
+			record.putInt(index).putLong(extent.offset).putInt(extent.length);
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), 0, record.position());
+			record.putInt((int) crc.getValue());
+			record.flip();
+
+			while (record.hasRemaining())
+				log.write(record, logSize + record.position());
+			log.force(false);
+			logSize += LOG_RECORD_BYTES;
+		}
+
+		/**
+		 * Replaces atomically the index file
+		 * NOTE: the caller must hold the write lock
+		 *
+		 * @param generation the data file generation
+		 * @param extents    the current section versions in the data file
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		private void writeIndex(long generation, Map<Integer, Extent> extents) throws IOException {
+			ByteBuffer index = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES +
+					extents.size() * (2 * Integer.BYTES + Long.BYTES));
+			index.putLong(generation).putInt(sections).putInt(extents.size());
+			for (Map.Entry<Integer, Extent> entry : extents.entrySet())
+				index.putInt(entry.getKey()).putLong(entry.getValue().offset).putInt(entry.getValue().length);
+			index.flip();
+
+			Path temporary = directory.resolve(INDEX_FILE + ".tmp");
+			try (FileChannel file = FileChannel.open(temporary,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				while (index.hasRemaining())
+					file.write(index);
+				file.force(false);
+			}
+			Files.move(temporary, directory.resolve(INDEX_FILE),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**
+		 * Returns the path of a data file generation
+		 *
+		 * @param generation the data file generation
+		 *
+		 * @return the data file path
+		 */
+		private Path dataPath(long generation) {
+			return directory.resolve(DATA_FILE + generation);
+		}
+
+		/**
+		 * Returns the path of the index log of a data file generation
+		 *
+		 * @param generation the data file generation
+		 *
+		 * @return the index log path
+		 */
+		private Path logPath(long generation) {
+			return directory.resolve(LOG_FILE + generation);
+		}
+
+		/**
+		 * Closes the data file and the index log
+		 *
+		 * @throws IOException if a disk error occurs
+		 */
+		void close() throws IOException {
+			lock.writeLock().lock();
+			try {
+				data.close();
+				log.close();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Position of a section version in the data file
+	 */
+	private static final class Extent {
+		final long offset; // first byte
+		final int length;  // bytes
+
+		Extent(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package turing.server.storage;
+
+import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
+
+import java.io.IOException;
+
+/**
+ * Interface for a document storage engine
+ */
+public interface Storage {
+
+	/**
+	 * Creates the storage of a new document, with empty sections
+	 *
+	 * @param creator  the document creator username
+	 * @param name     the document name
+	 * @param sections the number of sections
+	 *
+	 * @return the document storage
+	 *
+	 * @throws IOException                  if a disk error occurs
+	 * @throws PreExistentDocumentException if the document already exists
+	 */
+	DocumentStore createDocument(String creator, String name, int sections)
+			throws IOException, PreExistentDocumentException;
+
+	/**
+	 * Deletes the storage of a document
+	 * NOTE: the document must not be used anymore
+	 *
+	 * @param creator the document creator username
+	 * @param name    the document name
+	 *
+	 * @throws IOException                 if a disk error occurs
+	 * @throws InexistentDocumentException if the document doesn't exist
+	 */
+	void deleteDocument(String creator, String name) throws IOException, InexistentDocumentException;
+
+	/**
+	 * Releases the storage resources
+	 *
+	 * @throws IOException if a disk error occurs
+	 */
+	void close() throws IOException;
+}
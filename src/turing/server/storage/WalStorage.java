@@ -0,0 +1,307 @@
+package turing.server.storage;
+
+import turing.server.exceptions.InexistentDocumentException;
+import turing.server.exceptions.PreExistentDocumentException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Adds a write-ahead log to another storage
+ *
+ * Section writes are appended to a shared log and return after the log has been forced to disk;
+ * concurrent writes are forced together (group commit). The sections are then written to the underlying
+ * storage in background (checkpoint), and read from memory until then. The log is truncated when every
+ * logged write has been checkpointed.
+ *
+ * Log record:
+ *   int  length  (bytes that follow the checksum)
+ *   int  CRC32   (of the bytes that follow)
+ *   short document key length, document key UTF-8 bytes, int section, content UTF-8 bytes
+ */
+public class WalStorage implements Storage {
+	private static final int  MAX_BATCH          = 256;              // max writes forced together
+	private static final long TRUNCATE_MIN_BYTES = 16 * 1024 * 1024; // smaller logs are never truncated
+	private static final long POLL_MILLIS        = 100;              // committer wait for new writes
+	private static final long RETRY_MILLIS       = 1000;             // wait before retrying a failed checkpoint
+
+	private final Storage storage;    // underlying storage
+	private final FileChannel log;    // write-ahead log
+
+	private final BlockingQueue<LogRecord> pendingRecords = new LinkedBlockingQueue<>(); // writes to log
+	private final AtomicInteger uncheckpointed = new AtomicInteger(); // writes not in the underlying storage yet
+	private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor();
+	private final Thread committer = new Thread(this::commitLoop, "wal-committer");
+	private volatile boolean closed = false;
+	private final ReentrantLock closeLock = new ReentrantLock(); // no writes are queued after closing
+
+	/**
+	 * Key: document key in the log, to drop the pending writes of the deleted documents
+	 */
+	private final Map<String, WalDocumentStore> stores = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new write-ahead log storage
+	 *
+	 * @param storage the underlying storage
+	 * @param logPath the log file
+	 *
+	 * @throws IOException if the log cannot be opened
+	 */
+	public WalStorage(Storage storage, Path logPath) throws IOException {
+		this.storage = storage;
+		Files.createDirectories(logPath.toAbsolutePath().getParent());
+		log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	@Override
+	public DocumentStore createDocument(String creator, String name, int sections)
+			throws IOException, PreExistentDocumentException {
+		WalDocumentStore store = new WalDocumentStore(storage.createDocument(creator, name, sections),
+				creator + "/" + name);
+		stores.put(store.key, store);
+		return store;
+	}
+
+	@Override
+	public void deleteDocument(String creator, String name) throws IOException, InexistentDocumentException {
+		WalDocumentStore store = stores.remove(creator + "/" + name);
+		if (store != null)
+			store.delete();
+		storage.deleteDocument(creator, name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeLock.lock();
+		try {
+			closed = true; // not interrupting the committer, that would close the log channel
+		} finally {
+			closeLock.unlock();
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// the writes already logged still reach the underlying storage
+		checkpointer.shutdown();
+		try {
+			if (!checkpointer.awaitTermination(10, TimeUnit.SECONDS))
+				System.err.println("Checkpoint not completed");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.close();
+		storage.close();
+	}
+
+	/**
+	 * Appends the pending records to the log and forces them to disk in batches
+	 */
+	private void commitLoop() {
+		List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+		while (!closed || !pendingRecords.isEmpty()) {
+			try {
+				LogRecord first = pendingRecords.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) // checking if closed
+					continue;
+				batch.add(first);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			pendingRecords.drainTo(batch, MAX_BATCH - 1); // the writes arrived in the meantime
+
+			IOException error = null;
+			try {
+				if (uncheckpointed.get() == batch.size() && log.size() > TRUNCATE_MIN_BYTES)
+					log.truncate(0); // only this batch is not checkpointed, the log is not needed anymore
+				for (LogRecord record : batch)
+					while (record.bytes.hasRemaining())
+						log.write(record.bytes);
+				log.force(false);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			for (LogRecord record : batch) {
+				if (error == null)
+					record.committed.complete(null);
+				else
+					record.committed.completeExceptionally(error);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * A section write waiting to be logged
+	 */
+	private static class LogRecord {
+		final ByteBuffer bytes;                                            // encoded record
+		final CompletableFuture<Void> committed = new CompletableFuture<>(); // completed after the force
+
+		/**
+		 * Creates a new log record
+		 *
+		 * @param documentKey the document key
+		 * @param index       the section number
+		 * @param content     the section content
+		 */
+		LogRecord(String documentKey, int index, String content) {
+			byte[] key = documentKey.getBytes(StandardCharsets.UTF_8);
+			byte[] data = content.getBytes(StandardCharsets.UTF_8);
+			int length = Short.BYTES + key.length + Integer.BYTES + data.length;
+
+			bytes = ByteBuffer.allocate(2 * Integer.BYTES + length);
+			bytes.putInt(length).putInt(0); // checksum placeholder
+			bytes.putShort((short) key.length).put(key).putInt(index).put(data);
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes.array(), 2 * Integer.BYTES, length);
+			bytes.putInt(Integer.BYTES, (int) crc.getValue());
+			bytes.flip();
+		}
+	}
+
+	/**
+	 * A logged section content, compared by identity so that equal rewrites are told apart
+	 */
+	private static final class PendingContent {
+		final String content;
+
+		PendingContent(String content) {
+			this.content = content;
+		}
+	}
+
+	/**
+	 * A document whose section writes go through the log
+	 */
+	private class WalDocumentStore implements DocumentStore {
+		private final DocumentStore store; // underlying document storage
+		private final String key;           // document key in the log
+
+		/**
+		 * Key: section number, for the logged contents not checkpointed yet
+		 */
+		private final Map<Integer, PendingContent> pending = new ConcurrentHashMap<>();
+		private volatile boolean deleted = false; // the pending contents are not checkpointed anymore
+
+		/**
+		 * Creates a new logged document storage
+		 *
+		 * @param store the underlying document storage
+		 * @param key   the document key in the log
+		 */
+		WalDocumentStore(DocumentStore store, String key) {
+			this.store = store;
+			this.key = key;
+		}
+
+		@Override
+		public String readSection(int index) throws IOException {
+			PendingContent written = pending.get(index);
+			return (written != null) ? written.content : store.readSection(index);
+		}
+
+		@Override
+		public void writeSection(int index, String content) throws IOException {
+			LogRecord record = new LogRecord(key, index, content);
+			closeLock.lock();
+			try { // the committer drains the queue before exiting
+				if (closed)
+					throw new IOException("Storage closed");
+				uncheckpointed.incrementAndGet();
+				pendingRecords.add(record);
+			} finally {
+				closeLock.unlock();
+			}
+			try {
+				record.committed.join(); // group commit
+			} catch (CompletionException e) {
+				uncheckpointed.decrementAndGet();
+				throw new IOException("Cannot write log: " + e.getCause().getMessage(), e.getCause());
+			}
+			PendingContent written = new PendingContent(content);
+			pending.put(index, written);
+
+			checkpointer.execute(() -> checkpoint(index, written));
+		}
+
+		/**
+		 * Drops the pending contents, the document is being deleted
+		 * NOTE: every checkpoint task still queued or retrying releases its write from the log count
+		 */
+		void delete() {
+			deleted = true;
+			pending.clear();
+		}
+
+		/**
+		 * Writes a logged content to the underlying storage, retrying until written, rewritten or deleted
+		 * NOTE: a failed content stays counted as not checkpointed, so the log is not truncated
+		 *
+		 * @param index   the section number
+		 * @param written the logged content
+		 */
+		private void checkpoint(int index, PendingContent written) {
+			if (deleted || pending.get(index) != written) { // the newer content is checkpointed instead, if any
+				uncheckpointed.decrementAndGet();
+				return;
+			}
+
+			try {
+				store.writeSection(index, written.content);
+			} catch (IOException e) {
+				System.err.println("Cannot checkpoint section " + index + " of " + key + ": " + e.getMessage());
+				try {
+					if (!closed) {
+						checkpointer.schedule(() -> checkpoint(index, written), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+						return;
+					}
+				} catch (RejectedExecutionException closing) {
+					// reported below
+				}
+				System.err.println("Section " + index + " of " + key + " left in the log only");
+				return;
+			}
+			pending.computeIfPresent(index, (i, c) -> c == written ? null : c); // unless rewritten in the meantime
+			uncheckpointed.decrementAndGet();
+		}
+
+		@Override
+		public void transferSection(int index, LongFunction<ByteBuffer> header, WritableByteChannel target)
+				throws IOException {
+			PendingContent written = pending.get(index);
+			if (written == null) {
+				store.transferSection(index, header, target);
+				return;
+			}
+
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(written.content);
+			ByteBuffer[] buffers = { header.apply(bytes.remaining()), bytes };
+			for (ByteBuffer buffer : buffers)
+				while (buffer.hasRemaining())
+					target.write(buffer);
+		}
+	}
+}